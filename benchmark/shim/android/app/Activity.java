@@ -0,0 +1,33 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Handler;
+
+/**
+ * An activity whose UI thread is the thread of {@link android.os.Looper#getMainLooper()}. Other activities cannot be launched.
+ */
+public class Activity extends Context {
+    public static final int RESULT_CANCELED = 0;
+    public static final int RESULT_OK       = -1;
+
+    private Handler handler;
+
+    @Override
+    public String getPackageName() {
+        return this.getClass().getPackage().getName();
+    }
+
+    public void startIntentSenderForResult(final IntentSender intent, final int requestCode, final Intent fillInIntent, final int flagsMask, final int flagsValues, final int extraFlags) throws IntentSender.SendIntentException {
+        throw new IntentSender.SendIntentException();
+    }
+
+    public final synchronized void runOnUiThread(final Runnable action) {
+        if (this.handler == null) {
+            this.handler = new Handler(this.getMainLooper());
+        }
+
+        this.handler.post(action);
+    }
+}
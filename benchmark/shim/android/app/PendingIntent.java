@@ -0,0 +1,15 @@
+package android.app;
+
+import android.content.IntentSender;
+import android.os.Parcelable;
+
+/**
+ * A description of an activity to launch later.
+ */
+public final class PendingIntent implements Parcelable {
+    private final IntentSender intentSender = new IntentSender();
+
+    public IntentSender getIntentSender() {
+        return this.intentSender;
+    }
+}
@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * Identifies a component of an app.
+ */
+public final class ComponentName {
+}
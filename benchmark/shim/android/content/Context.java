@@ -0,0 +1,38 @@
+package android.content;
+
+import java.io.File;
+
+import android.os.Looper;
+
+/**
+ * The app environment. Services cannot be bound, as there is no Google Play off-device.
+ */
+public abstract class Context {
+    public static final int BIND_AUTO_CREATE = 1;
+    public static final int MODE_PRIVATE     = 0;
+
+    public abstract String getPackageName();
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public Looper getMainLooper() {
+        return Looper.getMainLooper();
+    }
+
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir")); //$NON-NLS-1$
+    }
+
+    public File getCacheDir() {
+        return new File(System.getProperty("java.io.tmpdir")); //$NON-NLS-1$
+    }
+
+    public boolean bindService(final Intent service, final ServiceConnection connection, final int flags) {
+        return false;
+    }
+
+    public void unbindService(final ServiceConnection connection) {
+    }
+}
@@ -0,0 +1,68 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An action and its extras, backed by a {@link HashMap}.
+ */
+public class Intent {
+    private final Map<String, Object> extras = new HashMap<String, Object>();
+    private final String              action;
+
+    public Intent() {
+        this(null);
+    }
+
+    public Intent(final String action) {
+        this.action = action;
+    }
+
+    public String getAction() {
+        return this.action;
+    }
+
+    public Intent setPackage(final String packageName) {
+        return this;
+    }
+
+    public boolean hasExtra(final String name) {
+        return this.extras.containsKey(name);
+    }
+
+    public Intent putExtra(final String name, final int value) {
+        this.extras.put(name, Integer.valueOf(value));
+
+        return this;
+    }
+
+    public Intent putExtra(final String name, final long value) {
+        this.extras.put(name, Long.valueOf(value));
+
+        return this;
+    }
+
+    public Intent putExtra(final String name, final String value) {
+        this.extras.put(name, value);
+
+        return this;
+    }
+
+    public int getIntExtra(final String name, final int defaultValue) {
+        final Object value = this.extras.get(name);
+
+        return value instanceof Integer ? ((Integer)value).intValue() : defaultValue;
+    }
+
+    public long getLongExtra(final String name, final long defaultValue) {
+        final Object value = this.extras.get(name);
+
+        return value instanceof Long ? ((Long)value).longValue() : defaultValue;
+    }
+
+    public String getStringExtra(final String name) {
+        final Object value = this.extras.get(name);
+
+        return value instanceof String ? (String)value : null;
+    }
+}
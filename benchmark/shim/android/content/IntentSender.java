@@ -0,0 +1,16 @@
+package android.content;
+
+/**
+ * Launches the activity of a {@link android.app.PendingIntent}.
+ */
+public class IntentSender {
+    /**
+     * Thrown when an {@link IntentSender} cannot be launched.
+     */
+    public static class SendIntentException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public SendIntentException() {
+        }
+    }
+}
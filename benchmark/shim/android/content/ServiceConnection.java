@@ -0,0 +1,12 @@
+package android.content;
+
+import android.os.IBinder;
+
+/**
+ * Receives the state of a bound service.
+ */
+public interface ServiceConnection {
+    void onServiceConnected(ComponentName name, IBinder service);
+
+    void onServiceDisconnected(ComponentName name);
+}
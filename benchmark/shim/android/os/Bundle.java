@@ -0,0 +1,58 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A map of values keyed by string, backed by a {@link HashMap}. Values are neither parcelled nor copied.
+ */
+public final class Bundle {
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    public int getInt(final String key) {
+        return this.getInt(key, 0);
+    }
+
+    public int getInt(final String key, final int defaultValue) {
+        final Object value = this.values.get(key);
+
+        return value instanceof Integer ? ((Integer)value).intValue() : defaultValue;
+    }
+
+    public void putInt(final String key, final int value) {
+        this.values.put(key, Integer.valueOf(value));
+    }
+
+    public String getString(final String key) {
+        final Object value = this.values.get(key);
+
+        return value instanceof String ? (String)value : null;
+    }
+
+    public void putString(final String key, final String value) {
+        this.values.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getStringArrayList(final String key) {
+        final Object value = this.values.get(key);
+
+        return value instanceof ArrayList ? (ArrayList<String>)value : null;
+    }
+
+    public void putStringArrayList(final String key, final ArrayList<String> value) {
+        this.values.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelable(final String key) {
+        final Object value = this.values.get(key);
+
+        return value instanceof Parcelable ? (T)value : null;
+    }
+
+    public void putParcelable(final String key, final Parcelable value) {
+        this.values.put(key, value);
+    }
+}
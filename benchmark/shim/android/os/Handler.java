@@ -0,0 +1,66 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on the thread of a {@link Looper}.
+ */
+public class Handler {
+    private final Looper                         looper;
+    private final Map<Runnable, List<Future<?>>> scheduled = new HashMap<Runnable, List<Future<?>>>();
+
+    public Handler() {
+        this(Looper.getMainLooper());
+    }
+
+    public Handler(final Looper looper) {
+        this.looper = looper;
+    }
+
+    public final Looper getLooper() {
+        return this.looper;
+    }
+
+    public final boolean post(final Runnable runnable) {
+        return this.postDelayed(runnable, 0);
+    }
+
+    public final boolean postDelayed(final Runnable runnable, final long delay) {
+        synchronized (this.scheduled) {
+            List<Future<?>> futures = this.scheduled.get(runnable);
+
+            if (futures == null) {
+                futures = new ArrayList<Future<?>>(1);
+                this.scheduled.put(runnable, futures);
+            } else {
+                for (final Iterator<Future<?>> iterator = futures.iterator(); iterator.hasNext();) {
+                    if (iterator.next().isDone()) {
+                        iterator.remove();
+                    }
+                }
+            }
+
+            futures.add(this.looper.executor.schedule(runnable, delay, TimeUnit.MILLISECONDS));
+        }
+
+        return true;
+    }
+
+    public final void removeCallbacks(final Runnable runnable) {
+        synchronized (this.scheduled) {
+            final List<Future<?>> futures = this.scheduled.remove(runnable);
+
+            if (futures != null) {
+                for (final Future<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+}
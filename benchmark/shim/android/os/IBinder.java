@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * The handle of a bound service.
+ */
+public interface IBinder {
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+/**
+ * The base interface of service interfaces.
+ */
+public interface IInterface {
+    IBinder asBinder();
+}
@@ -0,0 +1,39 @@
+package android.os;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A message loop, run by a single daemon thread.
+ */
+public final class Looper {
+    private static final String MAIN_THREAD_NAME = "main"; //$NON-NLS-1$
+
+    private static Looper mainLooper;
+
+    final ScheduledExecutorService executor;
+
+    private Looper(final String name) {
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the looper standing in for the main thread of the app, creating it on first use.
+     */
+    public static synchronized Looper getMainLooper() {
+        if (Looper.mainLooper == null) {
+            Looper.mainLooper = new Looper(Looper.MAIN_THREAD_NAME);
+        }
+
+        return Looper.mainLooper;
+    }
+}
@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * Marks the values that can be put in a {@link Bundle} with {@link Bundle#putParcelable(String, Parcelable)}.
+ */
+public interface Parcelable {
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Thrown when a call to a service fails.
+ */
+public class RemoteException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public RemoteException() {
+    }
+
+    public RemoteException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package android.text;
+
+/**
+ * String utilities.
+ */
+public final class TextUtils {
+    private TextUtils() {
+    }
+
+    public static boolean isEmpty(final CharSequence text) {
+        return text == null || text.length() == 0;
+    }
+}
@@ -0,0 +1,16 @@
+package android.util;
+
+/**
+ * Decodes Base64, backed by {@link java.util.Base64}.
+ */
+public final class Base64 {
+    public static final int DEFAULT = 0;
+
+    private Base64() {
+    }
+
+    public static byte[] decode(final String text, final int flags) {
+        // The MIME decoder skips line breaks, as the Android decoder does
+        return java.util.Base64.getMimeDecoder().decode(text);
+    }
+}
@@ -0,0 +1,34 @@
+package android.util;
+
+/**
+ * A pair of values.
+ */
+public class Pair<F, S> {
+    public final F first;
+    public final S second;
+
+    public Pair(final F first, final S second) {
+        this.first  = first;
+        this.second = second;
+    }
+
+    public static <A, B> Pair<A, B> create(final A first, final B second) {
+        return new Pair<A, B>(first, second);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof Pair)) {
+            return false;
+        }
+
+        final Pair<?, ?> pair = (Pair<?, ?>)o;
+
+        return (this.first == null ? pair.first == null : this.first.equals(pair.first)) && (this.second == null ? pair.second == null : this.second.equals(pair.second));
+    }
+
+    @Override
+    public int hashCode() {
+        return (this.first == null ? 0 : this.first.hashCode()) ^ (this.second == null ? 0 : this.second.hashCode());
+    }
+}
@@ -0,0 +1,34 @@
+package com.android.vending.billing;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+/**
+ * The in-app billing service interface declared by <code>IInAppBillingService.aidl</code>, without the {@link android.os.Binder} plumbing generated by the <code>aidl</code> tool.
+ * <p>Keep the methods in sync with the AIDL.</p>
+ */
+public interface IInAppBillingService extends IInterface {
+    int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException;
+
+    Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException;
+
+    Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException;
+
+    Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException;
+
+    int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException;
+
+    /**
+     * Converts the binder of a bound service to the service interface. Only in-process services are supported.
+     */
+    public abstract static class Stub {
+        private Stub() {
+        }
+
+        public static IInAppBillingService asInterface(final IBinder binder) {
+            return binder instanceof IInAppBillingService ? (IInAppBillingService)binder : null;
+        }
+    }
+}
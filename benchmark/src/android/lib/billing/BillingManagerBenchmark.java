@@ -0,0 +1,111 @@
+package android.lib.billing;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.RemoteException;
+import android.util.Pair;
+
+/**
+ * Measures {@link BillingManager} requests against a {@link FakeInAppBillingService}.
+ * <p>These benchmarks run against the plain Java stand-ins for the Android framework classes in the <code>shim</code> directory, so {@link Activity}, {@link android.os.Bundle} and {@link Intent} cost much less than on a device. Compare results with each other rather than with on-device timings.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BillingManagerBenchmark {
+    private static final String PACKAGE_NAME        = "android.lib.billing"; //$NON-NLS-1$
+    private static final String RESPONSE_CODE       = "RESPONSE_CODE";       //$NON-NLS-1$
+    private static final String INAPP_PURCHASE_DATA = "INAPP_PURCHASE_DATA"; //$NON-NLS-1$
+
+    /** Number of products in the catalog, all of which are queried */
+    @Param({ "20", "200", "1000" })
+    public int catalogSize;
+
+    /** Number of purchases in the purchase history */
+    @Param({ "100", "1000" })
+    public int purchaseCount;
+
+    /** Number of purchases per page */
+    @Param({ "100" })
+    public int pageSize;
+
+    /** Latency of each in-app billing service call, in milliseconds */
+    @Param({ "0", "5" })
+    public long latency;
+
+    /** Probability of each in-app billing service call returning {@link BillingManager#BILLING_RESPONSE_RESULT_ERROR} */
+    @Param({ "0", "0.1" })
+    public double errorRate;
+
+    private BillingManager manager;
+    private String[]       productIds;
+    private Intent         purchaseResult;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Activity activity = new Activity() {
+            @Override
+            public String getPackageName() {
+                return BillingManagerBenchmark.PACKAGE_NAME;
+            }
+        };
+
+        final FakeInAppBillingService service = new FakeInAppBillingService(BillingManagerBenchmark.PACKAGE_NAME, this.catalogSize, this.purchaseCount, this.pageSize);
+        service.setLatency(this.latency);
+        service.setErrorRate(this.errorRate);
+
+        // Without handlers nothing is scheduled, so the connection is never released, and listeners are called on the worker threads
+        final BillingConnection connection = new BillingConnection(activity, null);
+        connection.onConnected(service);
+
+        this.manager = new BillingManager(activity, connection, null);
+
+        this.productIds = new String[this.catalogSize];
+
+        for (int i = 0; i < this.catalogSize; i++) {
+            this.productIds[i] = Fixtures.getProductId(i);
+        }
+
+        this.purchaseResult = new Intent();
+        this.purchaseResult.putExtra(BillingManagerBenchmark.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_OK);
+        this.purchaseResult.putExtra(BillingManagerBenchmark.INAPP_PURCHASE_DATA, Fixtures.createPurchase(BillingManagerBenchmark.PACKAGE_NAME, this.productIds[0], 0));
+    }
+
+    @Benchmark
+    public Pair<Integer, List<Purchasable>> queryPurchasables() throws RemoteException {
+        return this.manager.queryPurchasableProducts(this.productIds);
+    }
+
+    @Benchmark
+    public Pair<Integer, List<Order>> queryPurchased() throws RemoteException {
+        return this.manager.queryPurchasedProducts();
+    }
+
+    @Benchmark
+    public int queryFirstPurchased() throws RemoteException {
+        return this.manager.queryPurchasedProducts(new BillingManager.OnPageListener() {
+            @Override
+            public boolean onPage(final List<Order> orders) {
+                return orders.isEmpty();
+            }
+        });
+    }
+
+    @Benchmark
+    public Pair<Integer, Order> parsePurchaseResult() {
+        return this.manager.parsePurchaseResult(Activity.RESULT_OK, this.purchaseResult, BillingManager.PURCHASE_TYPE_INAPP);
+    }
+}
@@ -0,0 +1,177 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+/**
+ * An in-process {@link IInAppBillingService} that serves a catalog and purchase history generated with {@link Fixtures}, with configurable latency and error injection.
+ * <p>It implements {@link IInAppBillingService} directly rather than through a {@link android.os.Binder}, so it runs on any JVM.</p>
+ */
+public final class FakeInAppBillingService implements IInAppBillingService {
+    private static final String RESPONSE_CODE            = "RESPONSE_CODE";            //$NON-NLS-1$
+    private static final String KEY_ITEM_ID              = "ITEM_ID_LIST";             //$NON-NLS-1$
+    private static final String DETAILS_LIST             = "DETAILS_LIST";             //$NON-NLS-1$
+    private static final String INAPP_PURCHASE_DATA_LIST = "INAPP_PURCHASE_DATA_LIST"; //$NON-NLS-1$
+    private static final String INAPP_CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN"; //$NON-NLS-1$
+
+    private final String[] details;
+    private final String[] purchases;
+    private final int      pageSize;
+    private final Random   random = new Random(0);
+
+    private volatile long   latency;
+    private volatile double errorRate;
+
+    /**
+     * Creates a new {@link FakeInAppBillingService}.
+     * @param packageName The package name of the purchases.
+     * @param catalogSize The number of products in the catalog.
+     * @param purchaseCount The number of purchases in the purchase history.
+     * @param pageSize The number of purchases returned per page by <code>getPurchases</code>.
+     */
+    public FakeInAppBillingService(final String packageName, final int catalogSize, final int purchaseCount, final int pageSize) {
+        this.details   = new String[catalogSize];
+        this.purchases = new String[purchaseCount];
+        this.pageSize  = pageSize;
+
+        for (int i = 0; i < catalogSize; i++) {
+            this.details[i] = Fixtures.createDetails(Fixtures.getProductId(i));
+        }
+
+        for (int i = 0; i < purchaseCount; i++) {
+            this.purchases[i] = Fixtures.createPurchase(packageName, Fixtures.getProductId(i % Math.max(1, catalogSize)), i);
+        }
+    }
+
+    /**
+     * Sets the time each call takes before returning.
+     * @param latency The time each call takes, in milliseconds.
+     */
+    public void setLatency(final long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets the probability of a call returning {@link BillingManager#BILLING_RESPONSE_RESULT_ERROR}.
+     * @param errorRate The probability, between 0 and 1.
+     */
+    public void setErrorRate(final double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Returns <code>null</code>, as the service is called in-process.
+     */
+    @Override
+    public IBinder asBinder() {
+        return null;
+    }
+
+    @Override
+    public int isBillingSupported(final int apiVersion, final String packageName, final String type) throws RemoteException {
+        return this.simulate();
+    }
+
+    @Override
+    public Bundle getSkuDetails(final int apiVersion, final String packageName, final String type, final Bundle skusBundle) throws RemoteException {
+        final Bundle bundle       = new Bundle();
+        final int    responseCode = this.simulate();
+
+        bundle.putInt(FakeInAppBillingService.RESPONSE_CODE, responseCode);
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            final ArrayList<String> productIds = skusBundle.getStringArrayList(FakeInAppBillingService.KEY_ITEM_ID);
+            final ArrayList<String> details    = new ArrayList<String>(productIds.size());
+
+            for (final String productId : productIds) {
+                final int index = Fixtures.getIndex(productId);
+
+                if (index >= 0 && index < this.details.length) {
+                    details.add(this.details[index]);
+                }
+            }
+
+            bundle.putStringArrayList(FakeInAppBillingService.DETAILS_LIST, details);
+        }
+
+        return bundle;
+    }
+
+    /**
+     * Returns {@link BillingManager#BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE} unless an error is injected, as buy intents cannot be created off-device.
+     */
+    @Override
+    public Bundle getBuyIntent(final int apiVersion, final String packageName, final String sku, final String type, final String developerPayload) throws RemoteException {
+        final Bundle bundle       = new Bundle();
+        final int    responseCode = this.simulate();
+
+        bundle.putInt(FakeInAppBillingService.RESPONSE_CODE, responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK ? BillingManager.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE : responseCode);
+
+        return bundle;
+    }
+
+    @Override
+    public Bundle getPurchases(final int apiVersion, final String packageName, final String type, final String continuationToken) throws RemoteException {
+        final Bundle bundle       = new Bundle();
+        final int    responseCode = this.simulate();
+
+        bundle.putInt(FakeInAppBillingService.RESPONSE_CODE, responseCode);
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            final int               start     = continuationToken == null ? 0 : Integer.parseInt(continuationToken);
+            final int               end       = Math.min(start + this.pageSize, this.purchases.length);
+            final ArrayList<String> purchases = new ArrayList<String>(end - start);
+
+            for (int i = start; i < end; i++) {
+                purchases.add(this.purchases[i]);
+            }
+
+            bundle.putStringArrayList(FakeInAppBillingService.INAPP_PURCHASE_DATA_LIST, purchases);
+
+            if (end < this.purchases.length) {
+                bundle.putString(FakeInAppBillingService.INAPP_CONTINUATION_TOKEN, String.valueOf(end));
+            }
+        }
+
+        return bundle;
+    }
+
+    @Override
+    public int consumePurchase(final int apiVersion, final String packageName, final String purchaseToken) throws RemoteException {
+        return this.simulate();
+    }
+
+    /**
+     * Waits for the configured latency, then injects an error at the configured rate.
+     * @return The response code of the call.
+     */
+    private int simulate() throws RemoteException {
+        if (this.latency > 0) {
+            try {
+                Thread.sleep(this.latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new RemoteException();
+            }
+        }
+
+        final double value;
+
+        synchronized (this.random) {
+            value = this.random.nextDouble();
+        }
+
+        if (value < this.errorRate) {
+            return BillingManager.BILLING_RESPONSE_RESULT_ERROR;
+        }
+
+        return BillingManager.BILLING_RESPONSE_RESULT_OK;
+    }
+}
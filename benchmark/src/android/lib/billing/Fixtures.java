@@ -0,0 +1,44 @@
+package android.lib.billing;
+
+/**
+ * Generates the JSON returned by Google Play for products and purchases.
+ * <p>Only depends on pure Java classes, so that benchmarks of the parsing code run on any JVM.</p>
+ */
+public final class Fixtures {
+    private static final String PRODUCT_ID_PREFIX = "product_"; //$NON-NLS-1$
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns the product ID of the product at the given index of the catalog.
+     */
+    public static String getProductId(final int index) {
+        return Fixtures.PRODUCT_ID_PREFIX + index;
+    }
+
+    /**
+     * Returns the index in the catalog of the product with the given product ID, or <code>-1</code> if it is not in the catalog.
+     */
+    public static int getIndex(final String productId) {
+        try {
+            return Integer.parseInt(productId.substring(Fixtures.PRODUCT_ID_PREFIX.length()));
+        } catch (final RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the product details JSON of a product, as returned by Google Play.
+     */
+    public static String createDetails(final String productId) {
+        return "{\"productId\":\"" + productId + "\",\"type\":\"inapp\",\"price\":\"$0.99\",\"title\":\"Title of " + productId + "\",\"description\":\"Description of " + productId + " with \\\"escaped\\\" text\"}"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    }
+
+    /**
+     * Returns the purchase data JSON of a purchase, as returned by Google Play.
+     */
+    public static String createPurchase(final String packageName, final String productId, final int index) {
+        return "{\"orderId\":\"12999763169054705758." + index + "\",\"packageName\":\"" + packageName + "\",\"productId\":\"" + productId + "\",\"purchaseTime\":" + (1345678900000L + index) + ",\"purchaseState\":0,\"developerPayload\":\"payload-" + index + "\",\"purchaseToken\":\"opaque-token-up-to-1000-characters-" + index + "\"}"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+    }
+}
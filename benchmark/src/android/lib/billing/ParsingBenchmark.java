@@ -0,0 +1,56 @@
+package android.lib.billing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures decoding {@link Order}s and {@link Purchasable}s from the JSON returned by Google Play.
+ * <p>These benchmarks only depend on pure Java classes, and run on any JVM.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParsingBenchmark {
+    private final String purchase = Fixtures.createPurchase("android.lib.billing", Fixtures.getProductId(42), 42); //$NON-NLS-1$
+    private final String details  = Fixtures.createDetails(Fixtures.getProductId(42));
+
+    @Benchmark
+    public boolean validatePurchase() {
+        return JsonScanner.isObject(this.purchase);
+    }
+
+    @Benchmark
+    public String decodeOrderProductId() {
+        return new Order(this.purchase, null, null).getProductId();
+    }
+
+    @Benchmark
+    public void decodeOrder(final Blackhole blackhole) {
+        final Order order = new Order(this.purchase, null, null);
+
+        blackhole.consume(order.getOrderId());
+        blackhole.consume(order.getPackageName());
+        blackhole.consume(order.getProductId());
+        blackhole.consume(order.getPurchaseDate());
+        blackhole.consume(order.getPurchaseState());
+        blackhole.consume(order.getDeveloperPayload());
+        blackhole.consume(order.getPurchaseToken());
+    }
+
+    @Benchmark
+    public void decodePurchasable(final Blackhole blackhole) {
+        final Purchasable purchasable = new Purchasable(this.details);
+
+        blackhole.consume(purchasable.getProductId());
+        blackhole.consume(purchasable.getTitle());
+        blackhole.consume(purchasable.getDescription());
+        blackhole.consume(purchasable.getPrice());
+    }
+}
@@ -0,0 +1,543 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.android.vending.billing.IInAppBillingService;
+
+/**
+ * Keeps a single connection to Google Play for your whole app, shared by every {@link BillingManager}.
+ * <p>The connection is reference-counted: it is established when the first {@link BillingManager} is created, and released some time after the last one is destroyed, so that moving from one Activity to another does not reconnect to Google Play.</p>
+ * <p>If Google Play is killed or updated while the connection is in use, it is re-established automatically, waiting longer between each attempt. Asynchronous requests made in the meantime are queued and run once connected, or fail when their deadline passes.</p>
+ */
+public final class BillingConnection {
+    /**
+     * Callback when the state of the connection to Google Play changes.
+     */
+    public interface OnStateChangeListener {
+        /**
+         * Callback when the state of the connection to Google Play changes.
+         * @param state The new state of the connection. Possible values are {@link #STATE_DISCONNECTED}, {@link #STATE_CONNECTING}, {@link #STATE_CONNECTED} and {@link #STATE_RECONNECTING}.
+         */
+        void onStateChange(int state);
+    }
+
+    /**
+     * Callback when the shared connection to Google Play is established or lost.
+     */
+    interface Listener {
+        void onConnected();
+
+        void onDisconnected();
+    }
+
+    /** Represents a connection that is not in use. */
+    public static final int STATE_DISCONNECTED = 0;
+    /** Represents a connection that is being established for the first time. */
+    public static final int STATE_CONNECTING   = 1;
+    /** Represents an established connection. */
+    public static final int STATE_CONNECTED    = 2;
+    /** Represents a connection that was lost and is being re-established. */
+    public static final int STATE_RECONNECTING = 3;
+
+    /** The default time the connection is kept after it is no longer used, in milliseconds. */
+    public static final long DEFAULT_IDLE_TIMEOUT    = 30 * 1000;
+    /** The default time an asynchronous request without a deadline of its own waits for the connection before it fails, in milliseconds. */
+    public static final long DEFAULT_PENDING_TIMEOUT = 10 * 1000;
+
+    private static final String BILLING_INTENT = "com.android.vending.billing.InAppBIND"; //$NON-NLS-1$
+
+    /** The maximum number of requests waiting for the connection. Further requests fail immediately. */
+    private static final int  MAX_PENDING         = 64;
+    /** The delay before the first reconnection attempt, doubled on each further attempt */
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    /** The maximum delay between two reconnection attempts */
+    private static final long MAX_RECONNECT_DELAY = 60 * 1000;
+
+    private static BillingConnection instance;
+
+    private final class Pending implements Runnable {
+        final Runnable task;
+        final Executor executor;
+
+        Pending(final Runnable task, final Executor executor) {
+            this.task     = task;
+            this.executor = executor;
+        }
+
+        /**
+         * Called when the deadline of the request passes.
+         */
+        @Override
+        public void run() {
+            final boolean expired;
+
+            synchronized (BillingConnection.this) {
+                expired = BillingConnection.this.pending.remove(this);
+            }
+
+            if (expired) {
+                BillingConnection.this.expiredCount.incrementAndGet();
+
+                BillingConnection.dispatch(this.task, this.executor);
+            }
+        }
+    }
+
+    private final Context           context;
+    private final Handler           handler;
+    private final ServiceConnection connection;
+    private final List<Listener>    listeners = new CopyOnWriteArrayList<Listener>();
+    private final List<Pending>     pending   = new ArrayList<Pending>();
+    private final Random            random    = new Random();
+
+    private final AtomicLong connectCount          = new AtomicLong();
+    private final AtomicLong disconnectCount       = new AtomicLong();
+    private final AtomicLong reconnectAttemptCount = new AtomicLong();
+    private final AtomicLong expiredCount          = new AtomicLong();
+    private final AtomicLong rejectedCount         = new AtomicLong();
+
+    private final Runnable unbind = new Runnable() {
+        @Override
+        public void run() {
+            BillingConnection.this.unbind();
+        }
+    };
+
+    private final Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            BillingConnection.this.reconnect();
+        }
+    };
+
+    private volatile IInAppBillingService service;
+    private volatile int                  state = BillingConnection.STATE_DISCONNECTED;
+
+    private OnStateChangeListener onStateChangeListener;
+
+    private int     references;
+    private boolean bound;
+    private boolean reconnectEnabled = true;
+    private int     reconnectAttempts;
+    private long    idleTimeout      = BillingConnection.DEFAULT_IDLE_TIMEOUT;
+    private long    pendingTimeout   = BillingConnection.DEFAULT_PENDING_TIMEOUT;
+
+    BillingConnection(final Context context) {
+        this(context, new Handler(context.getMainLooper()));
+    }
+
+    /**
+     * Creates a new {@link BillingConnection} that schedules its timeouts and reconnection attempts on the given handler.
+     * @param handler The handler to schedule on, or <code>null</code> to schedule nothing, such as off-device where there is no main {@link android.os.Looper}. The connection is then neither released after the idle timeout nor re-established automatically, and queued tasks wait until it is connected or released.
+     */
+    BillingConnection(final Context context, final Handler handler) {
+        this.context = context;
+        this.handler = handler;
+
+        this.connection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(final ComponentName name, final IBinder service) {
+                BillingConnection.this.onConnected(IInAppBillingService.Stub.asInterface(service));
+            }
+
+            @Override
+            public void onServiceDisconnected(final ComponentName name) {
+                BillingConnection.this.onDisconnected();
+            }
+        };
+    }
+
+    /**
+     * Returns the connection to Google Play shared by your app.
+     * @param context Any context of your app. Only its application context is retained.
+     * @return The connection to Google Play shared by your app.
+     */
+    public static synchronized BillingConnection getInstance(final Context context) {
+        if (BillingConnection.instance == null) {
+            BillingConnection.instance = new BillingConnection(context.getApplicationContext());
+        }
+
+        return BillingConnection.instance;
+    }
+
+    /**
+     * Sets the time the connection is kept after the last {@link BillingManager} using it is destroyed.
+     * @param idleTimeout The time the connection is kept after it is no longer used, in milliseconds.
+     */
+    public synchronized void setIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets the time an asynchronous request made while not connected waits for the connection, unless the request has a deadline of its own. Once it passes, the request fails with {@link IllegalStateException}.
+     * <p>{@link BillingManager} gives queries a shorter deadline, as they are cheap to repeat, and requests made in the background a longer one. Purchase and consumption requests use this time.</p>
+     * @param pendingTimeout The time an asynchronous request waits for the connection, in milliseconds.
+     */
+    public synchronized void setPendingTimeout(final long pendingTimeout) {
+        this.pendingTimeout = pendingTimeout;
+    }
+
+    /**
+     * Sets whether the connection is re-established automatically when it is lost or cannot be established. Enabled by default.
+     * @param reconnectEnabled <code>true</code> to re-establish the connection automatically; <code>false</code> otherwise.
+     */
+    public synchronized void setReconnectEnabled(final boolean reconnectEnabled) {
+        this.reconnectEnabled = reconnectEnabled;
+
+        if (!reconnectEnabled) {
+            this.cancel(this.reconnect);
+        }
+    }
+
+    public synchronized void setOnStateChangeListener(final OnStateChangeListener onStateChangeListener) {
+        this.onStateChangeListener = onStateChangeListener;
+    }
+
+    /**
+     * Returns <code>true</code> if your app is connected to Google Play; <code>false</code> otherwise.
+     * @return <code>true</code> if your app is connected to Google Play; <code>false</code> otherwise.
+     */
+    public boolean isConnected() {
+        return this.service != null;
+    }
+
+    /**
+     * Returns the state of the connection.
+     * @return The state of the connection. Possible values are {@link #STATE_DISCONNECTED}, {@link #STATE_CONNECTING}, {@link #STATE_CONNECTED} and {@link #STATE_RECONNECTING}.
+     */
+    public int getState() {
+        return this.state;
+    }
+
+    /**
+     * Returns the number of times the connection was established, including re-established.
+     * @return The number of times the connection was established.
+     */
+    public long getConnectCount() {
+        return this.connectCount.get();
+    }
+
+    /**
+     * Returns the number of times the connection was lost while in use.
+     * @return The number of times the connection was lost while in use.
+     */
+    public long getDisconnectCount() {
+        return this.disconnectCount.get();
+    }
+
+    /**
+     * Returns the number of attempts made to re-establish the connection.
+     * @return The number of attempts made to re-establish the connection.
+     */
+    public long getReconnectAttemptCount() {
+        return this.reconnectAttemptCount.get();
+    }
+
+    /**
+     * Returns the number of asynchronous requests that failed because their deadline passed before the connection was established.
+     * @return The number of asynchronous requests that failed because their deadline passed.
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    /**
+     * Returns the number of asynchronous requests that failed immediately because too many requests were already waiting for the connection.
+     * @return The number of asynchronous requests that failed because too many requests were waiting.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Returns the in-app billing service, or <code>null</code> if your app is not connected to Google Play.
+     */
+    IInAppBillingService getService() {
+        return this.service;
+    }
+
+    void addListener(final Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    void removeListener(final Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Starts using the connection, connecting to Google Play if not connected yet.
+     */
+    void acquire() {
+        final boolean connecting;
+
+        synchronized (this) {
+            this.references++;
+            this.cancel(this.unbind);
+
+            if (this.bound || this.state == BillingConnection.STATE_RECONNECTING) {
+                return;
+            }
+
+            connecting = this.bind() || this.reconnectEnabled;
+        }
+
+        if (connecting) {
+            this.setState(BillingConnection.STATE_CONNECTING);
+        } else {
+            this.flush();
+        }
+    }
+
+    /**
+     * Stops using the connection. The connection is released once it has not been used for the idle timeout.
+     */
+    synchronized void release() {
+        if (this.references > 0 && --this.references == 0) {
+            this.schedule(this.unbind, this.idleTimeout);
+        }
+    }
+
+    /**
+     * Runs a task on the given executor once your app is connected to Google Play, waiting for the connection for at most the pending timeout.
+     */
+    void execute(final Runnable task, final Executor executor) {
+        final long timeout;
+
+        synchronized (this) {
+            timeout = this.pendingTimeout;
+        }
+
+        this.execute(task, executor, timeout);
+    }
+
+    /**
+     * Runs a task on the given executor once your app is connected to Google Play. Tasks submitted while connecting are queued, and run as soon as the connection is established.
+     * <p>If the connection is not established before the deadline of a task, cannot be established, or is released, the queued task is run anyway, and fails as its service is not available. Each task has its own deadline, so a long deadline does not hold back the others.</p>
+     * @param timeout The time the task waits for the connection, in milliseconds.
+     */
+    void execute(final Runnable task, final Executor executor, final long timeout) {
+        synchronized (this) {
+            if (this.service == null && this.references > 0 && this.state != BillingConnection.STATE_DISCONNECTED) {
+                if (this.pending.size() < BillingConnection.MAX_PENDING) {
+                    final Pending request = new Pending(task, executor);
+
+                    this.pending.add(request);
+                    this.schedule(request, timeout);
+
+                    return;
+                }
+
+                this.rejectedCount.incrementAndGet();
+            }
+        }
+
+        executor.execute(task);
+    }
+
+    /**
+     * Returns an {@link Executor} that runs tasks on the given executor once your app is connected to Google Play.
+     */
+    Executor whenConnected(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                BillingConnection.this.execute(task, executor);
+            }
+        };
+    }
+
+    /**
+     * Returns an {@link Executor} that runs tasks on the given executor once your app is connected to Google Play, each waiting for the connection for at most the given time.
+     * @param timeout The time each task waits for the connection, in milliseconds.
+     */
+    Executor whenConnected(final Executor executor, final long timeout) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                BillingConnection.this.execute(task, executor, timeout);
+            }
+        };
+    }
+
+    /**
+     * Called when the in-app billing service is connected. Also used to connect to a fake in-app billing service off-device.
+     */
+    void onConnected(final IInAppBillingService service) {
+        synchronized (this) {
+            this.service           = service;
+            this.reconnectAttempts = 0;
+            this.cancel(this.reconnect);
+        }
+
+        this.connectCount.incrementAndGet();
+        this.setState(BillingConnection.STATE_CONNECTED);
+
+        for (final Listener listener : this.listeners) {
+            listener.onConnected();
+        }
+
+        this.flush();
+    }
+
+    private void onDisconnected() {
+        final boolean reconnecting;
+
+        synchronized (this) {
+            this.service = null;
+
+            reconnecting = this.reconnectEnabled && this.references > 0;
+
+            if (reconnecting) {
+                this.scheduleReconnect();
+            }
+        }
+
+        this.disconnectCount.incrementAndGet();
+        this.setState(reconnecting ? BillingConnection.STATE_RECONNECTING : BillingConnection.STATE_DISCONNECTED);
+
+        for (final Listener listener : this.listeners) {
+            listener.onDisconnected();
+        }
+
+        if (!reconnecting) {
+            this.flush();
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (this.service != null || this.references == 0 || !this.reconnectEnabled) {
+                return;
+            }
+
+            if (this.bound) {
+                this.context.unbindService(this.connection);
+
+                this.bound = false;
+            }
+
+            this.reconnectAttemptCount.incrementAndGet();
+
+            if (this.bind()) {
+                // Try again if this attempt does not connect in time
+                this.scheduleReconnect();
+            }
+        }
+
+        this.setState(BillingConnection.STATE_RECONNECTING);
+    }
+
+    /**
+     * Binds to the in-app billing service, and schedules another attempt if it cannot be bound.
+     * @return <code>true</code> if the service is being bound; <code>false</code> otherwise.
+     */
+    private boolean bind() {
+        this.bound = this.context.bindService(new Intent(BillingConnection.BILLING_INTENT), this.connection, Context.BIND_AUTO_CREATE);
+
+        if (!this.bound && this.reconnectEnabled) {
+            this.scheduleReconnect();
+        }
+
+        return this.bound;
+    }
+
+    /**
+     * Schedules a reconnection attempt after an exponentially increasing delay, with a random jitter so that attempts from many devices do not line up.
+     */
+    private void scheduleReconnect() {
+        final long delay = Math.min(BillingConnection.MAX_RECONNECT_DELAY, BillingConnection.MIN_RECONNECT_DELAY << Math.min(this.reconnectAttempts++, 16));
+
+        this.cancel(this.reconnect);
+        this.schedule(this.reconnect, delay / 2 + (long)(this.random.nextDouble() * delay / 2));
+    }
+
+    private void schedule(final Runnable task, final long delay) {
+        if (this.handler != null) {
+            this.handler.postDelayed(task, delay);
+        }
+    }
+
+    private void cancel(final Runnable task) {
+        if (this.handler != null) {
+            this.handler.removeCallbacks(task);
+        }
+    }
+
+    private void unbind() {
+        synchronized (this) {
+            if (this.references > 0) {
+                return;
+            }
+
+            this.cancel(this.reconnect);
+
+            if (this.bound) {
+                this.context.unbindService(this.connection);
+            }
+
+            this.bound             = false;
+            this.service           = null;
+            this.reconnectAttempts = 0;
+        }
+
+        this.setState(BillingConnection.STATE_DISCONNECTED);
+        this.flush();
+    }
+
+    private void setState(final int state) {
+        final OnStateChangeListener listener;
+
+        synchronized (this) {
+            if (this.state == state) {
+                return;
+            }
+
+            this.state = state;
+            listener   = this.onStateChangeListener;
+        }
+
+        if (listener != null) {
+            listener.onStateChange(state);
+        }
+    }
+
+    /**
+     * Runs the queued tasks on their executors.
+     */
+    private void flush() {
+        final List<Pending> requests;
+
+        synchronized (this) {
+            requests = new ArrayList<Pending>(this.pending);
+            this.pending.clear();
+        }
+
+        for (final Pending request : requests) {
+            this.cancel(request);
+
+            BillingConnection.dispatch(request.task, request.executor);
+        }
+    }
+
+    private static void dispatch(final Runnable task, final Executor executor) {
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            Log.w(BillingConnection.class.getName(), e.getMessage(), e);
+        }
+    }
+}
@@ -1,22 +1,32 @@
 package android.lib.billing;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.IBinder;
+import android.os.Handler;
 import android.os.RemoteException;
 import android.util.Log;
 import android.util.Pair;
@@ -25,6 +35,7 @@ import com.android.vending.billing.IInAppBillingService;
 
 /**
  * Provides a straightforward and simple interface for sending in-app billing requests and managing in-app transactions in Google Play.
+ * <p>Every request has a blocking variant, which must not be called on the main thread, and an asynchronous variant that runs on a bounded pool of worker threads and notifies an {@link OnResultListener} on the main thread.</p>
  */
 public final class BillingManager {
     /**
@@ -47,9 +58,41 @@ public final class BillingManager {
         void onDisconnect();
     }
 
+    /**
+     * Callback for each page of purchases returned by Google Play.
+     */
+    public interface OnPageListener {
+        /**
+         * Callback for each page of purchases returned by Google Play.
+         * @param orders The {@link Order}s in the page.
+         * @return <code>true</code> to continue with the next page; <code>false</code> to stop querying.
+         */
+        boolean onPage(List<Order> orders);
+    }
+
+    /**
+     * Callback when an asynchronous request completes.
+     * @param <T> The type of the request result.
+     */
+    public interface OnResultListener<T> {
+        /**
+         * Callback when an asynchronous request completes successfully.
+         * @param result The result of the request.
+         */
+        void onResult(T result);
+
+        /**
+         * Callback when an asynchronous request fails.
+         * @param e The exception thrown by the request, such as {@link IllegalStateException} if your app is not connected to Google Play, or {@link RemoteException} if the request cannot be completed by Google Play.
+         */
+        void onError(Exception e);
+    }
+
     public static final int BILLING_RESPONSE_RESULT_OK                  = 0;
     /** User pressed back or canceled a dialog */
     public static final int BILLING_RESPONSE_RESULT_USER_CANCELED       = 1;
+    /** Network connection is down, or the request was rejected by the {@link CallGuard} */
+    public static final int BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE = 2;
     /** Billing API version is not supported for the type requested */
     public static final int BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE = 3;
     /** Requested product is not available for purchase */
@@ -63,52 +106,104 @@ public final class BillingManager {
     /** Failure to consume since item is not owned */
     public static final int BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED      = 8;
 
-    private static final String BILLING_INTENT             = "com.android.vending.billing.InAppBIND"; //$NON-NLS-1$
-    private static final String RESPONSE_CODE              = "RESPONSE_CODE";                         //$NON-NLS-1$
-    private static final String KEY_ITEM_ID                = "ITEM_ID_LIST";                          //$NON-NLS-1$
-    private static final String PURCHASE_TYPE_INAPP        = "inapp";                                 //$NON-NLS-1$
-    private static final String PURCHASE_TYPE_SUBSCRIPTION = "subs";                                  //$NON-NLS-1$
-    private static final String BUY_INTENT                 = "BUY_INTENT";                            //$NON-NLS-1$
-    private static final String DETAILS_LIST               = "DETAILS_LIST";                          //$NON-NLS-1$
-    private static final String TITLE                      = "title";                                 //$NON-NLS-1$
-    private static final String DESCRIPTION                = "description";                           //$NON-NLS-1$
-    private static final String PRICE                      = "price";                                 //$NON-NLS-1$
-    private static final String INAPP_PURCHASE_DATA        = "INAPP_PURCHASE_DATA";                   //$NON-NLS-1$
-    private static final String INAPP_PURCHASE_DATA_LIST   = "INAPP_PURCHASE_DATA_LIST";              //$NON-NLS-1$
-    private static final String INAPP_CONTINUATION_TOKEN   = "INAPP_CONTINUATION_TOKEN";              //$NON-NLS-1$
-    private static final String ORDER_ID                   = "orderId";                               //$NON-NLS-1$
-    private static final String PACKAGE_NAME               = "packageName";                           //$NON-NLS-1$
-    private static final String PRODUCT_ID                 = "productId";                             //$NON-NLS-1$
-    private static final String PURCHASE_TIME              = "purchaseTime";                          //$NON-NLS-1$
-    private static final String PURCHASE_STATE             = "purchaseState";                         //$NON-NLS-1$
-    private static final String DEVELOPER_PAYLOAD          = "developerPayload";                      //$NON-NLS-1$
-    private static final String PURCHASE_TOKEN             = "purchaseToken";                         //$NON-NLS-1$
+    /** The type of in-app products */
+    public static final String PURCHASE_TYPE_INAPP        = "inapp"; //$NON-NLS-1$
+    /** The type of subscriptions */
+    public static final String PURCHASE_TYPE_SUBSCRIPTION = "subs";  //$NON-NLS-1$
+
+    private static final String RESPONSE_CODE             = "RESPONSE_CODE";                         //$NON-NLS-1$
+    private static final String KEY_ITEM_ID               = "ITEM_ID_LIST";                          //$NON-NLS-1$
+    private static final String BUY_INTENT                = "BUY_INTENT";                            //$NON-NLS-1$
+    private static final String DETAILS_LIST              = "DETAILS_LIST";                          //$NON-NLS-1$
+    private static final String INAPP_PURCHASE_DATA       = "INAPP_PURCHASE_DATA";                   //$NON-NLS-1$
+    private static final String INAPP_PURCHASE_DATA_LIST  = "INAPP_PURCHASE_DATA_LIST";              //$NON-NLS-1$
+    private static final String INAPP_DATA_SIGNATURE      = "INAPP_DATA_SIGNATURE";                  //$NON-NLS-1$
+    private static final String INAPP_DATA_SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";             //$NON-NLS-1$
+    private static final String INAPP_CONTINUATION_TOKEN  = "INAPP_CONTINUATION_TOKEN";              //$NON-NLS-1$
+    private static final String PURCHASE_TOKEN            = "purchaseToken";                         //$NON-NLS-1$
 
     private static final int INAPP_API_VERSION = 3;
 
-    private final Activity          activity;
-    private final ServiceConnection connection;
+    /** The maximum number of product IDs Google Play accepts in a single <code>getSkuDetails</code> request */
+    private static final int MAX_SKUS_PER_REQUEST = 20;
+    /** The maximum number of consumption requests sent to Google Play at the same time */
+    private static final int MAX_CONCURRENT_CONSUMES = 4;
+    /** The number of times a consumption request is retried after {@link #BILLING_RESPONSE_RESULT_ERROR} */
+    private static final int MAX_CONSUME_RETRIES = 2;
+    /** The delay before the first retry of a consumption request, doubled on each further retry */
+    private static final long CONSUME_RETRY_DELAY = 250;
+    /** The number of purchases in a page above which signatures are verified concurrently */
+    private static final int MIN_CONCURRENT_VERIFICATIONS = 16;
+    /** The maximum number of slices a page of purchases is split into for signature verification */
+    private static final int MAX_CONCURRENT_VERIFICATIONS = 4;
+    /** The time after which a purchase flow without result is considered abandoned, in milliseconds */
+    private static final long PURCHASE_FLOW_TIMEOUT = 60 * 60 * 1000;
+    /** The time an asynchronous query made while not connected waits for the connection, in milliseconds. Queries are cheap to repeat, so they fail early */
+    private static final long QUERY_PENDING_TIMEOUT = 5 * 1000;
+    /** The time an asynchronous request made in the background, such as synchronizing the purchase ledger, waits for the connection, in milliseconds */
+    private static final long BACKGROUND_PENDING_TIMEOUT = 60 * 1000;
 
-    private IInAppBillingService service;
-    private boolean              connected;
+    private final Activity                   activity;
+    private final BillingConnection          connection;
+    private final BillingConnection.Listener listener;
+    private final SingleFlight               requests     = new SingleFlight();
+    private final PurchasableFlights         purchasables = new PurchasableFlights();
+    private final EntitlementStream          entitlements = new EntitlementStream();
+    private final PurchaseFlows              flows        = new PurchaseFlows(BillingManager.PURCHASE_FLOW_TIMEOUT);
 
     private OnConnectListener    onConnectListener;
     private OnDisconnectListener onDisconnectListener;
 
-    private int requestCode;
+    private Executor         executor;
+    private Handler          handler;
+    private PurchasableCache cache;
+    private PurchaseLedger   ledger;
+    private PurchaseJournal  journal;
+    private BillingMetrics   metrics = BillingMetrics.NONE;
+
+    private volatile SignatureVerifier verifier;
+    private volatile CallGuard         guard;
+    private volatile ProductIndex      index     = ProductIndex.EMPTY;
+    private final Object               indexLock = new Object();
+    /** The value of {@link System#nanoTime()} when a purchase was last made or consumed locally. Guarded by {@link #indexLock} */
+    private long                       changeTime = System.nanoTime();
+
+    private boolean  warmUpEnabled;
+    private String[] warmUpProductIds      = new String[0];
+    private String[] warmUpSubscriptionIds = new String[0];
+    private WarmUp   warmUp;
 
     /**
      * Creates a new {@link BillingManager} for your Activity.
      * @param activity The activity that initiates purchase requests.
      */
     public BillingManager(final Activity activity) {
-        this.activity = activity;
+        this(activity, BillingConnection.getInstance(activity), new Handler(activity.getMainLooper()));
+    }
 
-        this.connection = new ServiceConnection() {
+    /**
+     * Creates a new {@link BillingManager} that uses the given connection, such as one to a fake in-app billing service.
+     * @param handler The handler on which the listeners of asynchronous requests are called, or <code>null</code> to call them on the worker thread that runs the request. See {@link #setCallbackHandler(Handler)}.
+     */
+    BillingManager(final Activity activity, final BillingConnection connection, final Handler handler) {
+        this.activity   = activity;
+        this.handler    = handler;
+        this.connection = connection;
+
+        this.listener = new BillingConnection.Listener() {
             @Override
-            public void onServiceConnected(final ComponentName name, final IBinder service) {
-                BillingManager.this.service   = IInAppBillingService.Stub.asInterface(service);
-                BillingManager.this.connected = true;
+            public void onConnected() {
+                if (BillingManager.this.ledger != null) {
+                    BillingManager.this.syncPurchaseLedgerAsync(null);
+                }
+
+                if (BillingManager.this.journal != null) {
+                    BillingManager.this.reconcilePurchaseJournalAsync(null);
+                }
+
+                if (BillingManager.this.warmUp != null) {
+                    BillingManager.this.warmUp.start(BillingManager.this.getExecutor());
+                }
 
                 if (BillingManager.this.onConnectListener != null) {
                     BillingManager.this.onConnectListener.onConnect();
@@ -116,10 +211,7 @@ public final class BillingManager {
             }
 
             @Override
-            public void onServiceDisconnected(final ComponentName name) {
-                BillingManager.this.service   = null;
-                BillingManager.this.connected = false;
-
+            public void onDisconnected() {
                 if (BillingManager.this.onDisconnectListener != null) {
                     BillingManager.this.onDisconnectListener.onDisconnect();
                 }
@@ -129,52 +221,108 @@ public final class BillingManager {
 
     /**
      * Initializes the in-app billing service and connects to Google Play.
+     * <p>The connection is shared by every {@link BillingManager} in your app. If it is already established, {@link OnConnectListener#onConnect()} is called immediately.</p>
      */
     public void onCreate() {
-        this.activity.bindService(new Intent(BillingManager.BILLING_INTENT), this.connection, Context.BIND_AUTO_CREATE);
+        if (this.warmUpEnabled && this.warmUp == null) {
+            this.warmUp = this.newWarmUp();
+        }
+
+        this.connection.addListener(this.listener);
+        this.connection.acquire();
+
+        if (this.connection.isConnected()) {
+            this.listener.onConnected();
+        }
     }
 
     /**
-     * Cleans up any resources used by the in-app billing service and disconnects from Google Play.
+     * Cleans up any resources used by the in-app billing service and releases the connection to Google Play.
+     * <p>The connection is kept for a while after the last {@link BillingManager} is destroyed, so that the next Activity does not have to reconnect. See {@link BillingConnection#setIdleTimeout(long)}.</p>
      */
     public void onDestroy() {
-        if (this.service != null) {
-            this.activity.unbindService(this.connection);
+        this.connection.removeListener(this.listener);
+        this.connection.release();
+
+        if (this.warmUp != null) {
+            this.warmUp.cancel();
+            this.warmUp = null;
         }
     }
 
     /**
      * Passes the purchase result from a call to {@link #purchase(int, String, String)} or {@link #subscribe(int, String, String)} and returns a pair of request result and a list of {@link Order}s.
+     * <p>Results are matched to their purchase flows by request code, so several flows launched with different request codes can be waiting for their results at the same time. A purchase result is also recognized by its data when its flow is unknown, because the activity was recreated while the flow was running for instance.</p>
      * @param requestCode An integer to identify the request in the current session.
      * @param resultCode The value of <code>resultCode</code> in your {@link Activity#onActivityResult}.
      * @param data The value of <code>data</code> in your {@link Activity#onActivityResult}.
-     * @return A pair of request result and a list of {@link Order}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
+     * @return A pair of request result and a list of {@link Order}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise. <code>null</code> if the result is not a purchase result.
      */
     public Pair<Integer, Order> onActivityResult(final int requestCode, final int resultCode, final Intent data) {
-        if (this.service == null) {
-            return null;
-        }
+        final PurchaseFlows.Flow flow = this.flows.finish(requestCode);
+
+        if (flow != null || data != null && data.hasExtra(BillingManager.INAPP_PURCHASE_DATA)) {
+            final Pair<Integer, Order> result = this.parsePurchaseResult(resultCode, data, flow == null ? null : flow.type);
+
+            if (flow != null) {
+                this.metrics.onPurchaseFlow(System.nanoTime() - flow.startTime, result == null ? BillingManager.BILLING_RESPONSE_RESULT_ERROR : result.first.intValue());
+
+                if (result != null && result.second != null && !flow.productId.equals(result.second.getProductId())) {
+                    Log.w(this.getClass().getName(), "Purchase result for " + result.second.getProductId() + " does not match the " + flow.type + " purchase flow for " + flow.productId); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                }
+            }
+
+            if (result != null && result.second != null) {
+                this.indexPurchase(result.second);
+                this.entitlements.onPurchased(result.second);
+
+                if (this.ledger != null) {
+                    this.ledger.put(result.second);
+                    this.saveLedger(this.ledger);
+                }
+            }
+
+            if (result != null && this.journal != null) {
+                this.recordResult(this.journal, requestCode, result.second);
+            }
 
-        if (requestCode == 0) {
-            return null;
+            return result;
         }
 
-        if (requestCode == this.requestCode) {
-            if (resultCode == Activity.RESULT_OK) {
-                if (data.getIntExtra(BillingManager.RESPONSE_CODE, 0) == BillingManager.BILLING_RESPONSE_RESULT_OK) {
-                    try {
-                        final JSONObject json = new JSONObject(data.getStringExtra(BillingManager.INAPP_PURCHASE_DATA));
+        return null;
+    }
+
+    /**
+     * Decodes the purchase result delivered to {@link Activity#onActivityResult(int, int, Intent)}.
+     */
+    Pair<Integer, Order> parsePurchaseResult(final int resultCode, final Intent data, final String type) {
+        if (resultCode == Activity.RESULT_OK) {
+            if (data.getIntExtra(BillingManager.RESPONSE_CODE, 0) == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+                final String json = data.getStringExtra(BillingManager.INAPP_PURCHASE_DATA);
+
+                if (Order.isValid(json)) {
+                    final Order             order    = new Order(json, data.getStringExtra(BillingManager.INAPP_DATA_SIGNATURE), type);
+                    final SignatureVerifier verifier = this.verifier;
 
-                        return Pair.create(Integer.valueOf(json.getInt(BillingManager.RESPONSE_CODE)), new Order(json.getString(BillingManager.ORDER_ID), json.getString(BillingManager.PACKAGE_NAME), json.getString(BillingManager.PRODUCT_ID), new Date(json.getLong(BillingManager.PURCHASE_TIME)), json.getInt(BillingManager.PURCHASE_STATE), json.getString(BillingManager.DEVELOPER_PAYLOAD), json.getString(BillingManager.PURCHASE_TOKEN)));
-                    } catch (final JSONException e) {
-                        Log.e(this.getClass().getName(), e.getMessage(), e);
+                    if (verifier == null || verifier.verify(order)) {
+                        return Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_OK), order);
                     }
+
+                    this.metrics.onVerificationFailure(BillingMetrics.OPERATION_GET_BUY_INTENT);
+
+                    Log.e(this.getClass().getName(), "Signature verification failed: " + json); //$NON-NLS-1$
+
+                    return Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_ERROR), null);
                 }
 
-                return Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_ERROR), null);
-            } else if (resultCode == Activity.RESULT_CANCELED) {
-                return Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_USER_CANCELED), null);
+                this.metrics.onParseFailure(BillingMetrics.OPERATION_GET_BUY_INTENT);
+
+                Log.e(this.getClass().getName(), String.valueOf(json));
             }
+
+            return Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_ERROR), null);
+        } else if (resultCode == Activity.RESULT_CANCELED) {
+            return Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_USER_CANCELED), null);
         }
 
         return null;
@@ -186,7 +334,7 @@ public final class BillingManager {
      * @return <code>true</code> if your app is connected to Google Play; <code>false</code> otherwise.
      */
     public boolean isServiceConnected() {
-        return this.connected;
+        return this.connection.isConnected();
     }
 
     public void setOnConnectListener(final OnConnectListener onConnectListener) {
@@ -198,176 +346,1460 @@ public final class BillingManager {
     }
 
     /**
-     * Queries product details from Google Play that are available for purchase.
-     * <p>Note: Do not call {@link #queryPurchasableProducts} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
-     * @param productIds The product IDs to query.
-     * @return A pair of request result and a list of {@link Purchasable}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
-     * @throws IllegalStateException if your app is not connected to Google Play.
-     * @throws RemoteException if the request cannot be completed by Google Play.
+     * Sets the {@link Executor} used to run billing requests concurrently, such as product detail queries that are split into multiple requests.
+     * <p>If not set, or set to <code>null</code>, a bounded pool of worker threads shared by the library is used.</p>
+     * @param executor The executor used to run billing requests.
      */
-    public Pair<Integer, List<Purchasable>> queryPurchasableProducts(final String... productIds) throws IllegalStateException, RemoteException {
-        return this.queryPurchasables(BillingManager.PURCHASE_TYPE_INAPP, productIds);
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
     }
 
     /**
-     * Queries subscription details from Google Play that are available for subscription.
-     * <p>Note: Do not call {@link #queryPurchasableSubscriptions} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
-     * @param productIds The product IDs to query.
-     * @return A pair of request result and a list of {@link Purchasable}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
-     * @throws IllegalStateException if your app is not connected to Google Play.
-     * @throws RemoteException if the request cannot be completed by Google Play.
+     * Sets the {@link Handler} on which the listeners of asynchronous requests are called.
+     * <p>By default, the listeners are called on the main thread. If set to <code>null</code>, the listeners are called on the worker thread that runs the request.</p>
+     * @param handler The handler on which the listeners of asynchronous requests are called.
      */
-    public Pair<Integer, List<Purchasable>> queryPurchasableSubscriptions(final String... productIds) throws IllegalStateException, RemoteException {
-        return this.queryPurchasables(BillingManager.PURCHASE_TYPE_SUBSCRIPTION, productIds);
+    public void setCallbackHandler(final Handler handler) {
+        this.handler = handler;
     }
 
-    private Pair<Integer, List<Purchasable>> queryPurchasables(final String type, final String... productIds) throws IllegalStateException, RemoteException {
-        if (this.service == null) {
-            throw new IllegalStateException();
-        }
+    /**
+     * Sets the {@link PurchasableCache} used to serve {@link #queryPurchasableProducts(String...)} and {@link #queryPurchasableSubscriptions(String...)} without going through Google Play.
+     * <p>Products found in the cache are returned immediately. Expired products are returned as well, and are refreshed in the background.</p>
+     * @param cache The cache of product details, or <code>null</code> to disable caching.
+     */
+    public void setPurchasableCache(final PurchasableCache cache) {
+        this.cache = cache;
+    }
 
-        final Bundle bundle = new Bundle();
-        bundle.putStringArrayList(BillingManager.KEY_ITEM_ID, new ArrayList<String>(Arrays.asList(productIds)));
+    /**
+     * Sets the {@link PurchaseLedger} that keeps a local copy of the purchases made by the user.
+     * <p>The ledger is synchronized with Google Play in the background whenever your app connects to Google Play, and updated as purchases are made with {@link #onActivityResult(int, int, Intent)} and consumed with {@link #consume(String)}.</p>
+     * @param ledger The purchase ledger, or <code>null</code> to stop updating it.
+     */
+    public void setPurchaseLedger(final PurchaseLedger ledger) {
+        this.ledger = ledger;
+    }
 
-        final Bundle            responses    = this.service.getSkuDetails(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), type, bundle);
-        final int               responseCode = responses.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
-        final List<Purchasable> products     = new ArrayList<Purchasable>();
+    /**
+     * Sets the {@link PurchaseJournal} that records purchases from the moment a purchase flow is launched until they are consumed or acknowledged.
+     * <p>Purchase flows are recorded before they are launched, and their results in the background once they are passed to {@link #onActivityResult(int, int, Intent)}, so that the main thread never waits for the disk. Whenever your app connects to Google Play, the journal is loaded if needed and, unless it is empty, reconciled in the background with {@link #reconcilePurchaseJournal()}.</p>
+     * @param journal The purchase journal, or <code>null</code> to stop recording purchases.
+     */
+    public void setPurchaseJournal(final PurchaseJournal journal) {
+        this.journal = journal;
+    }
 
-        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
-            for (final String response : responses.getStringArrayList(BillingManager.DETAILS_LIST)) {
-                try {
-                    final JSONObject json = new JSONObject(response);
+    /**
+     * Sets the {@link BillingMetrics} that receives measurements of every request sent to Google Play, such as {@link BillingStatistics}.
+     * @param metrics The metrics to record requests to, or <code>null</code> to stop recording.
+     */
+    public void setMetrics(final BillingMetrics metrics) {
+        this.metrics = metrics == null ? BillingMetrics.NONE : metrics;
+    }
 
-                    products.add(new Purchasable(json.getString(BillingManager.PRODUCT_ID), json.getString(BillingManager.TITLE), json.getString(BillingManager.DESCRIPTION), json.getString(BillingManager.PRICE)));
-                } catch (final JSONException e) {
-                    Log.e(this.getClass().getName(), e.getMessage(), e);
-                }
-            }
-        }
+    /**
+     * Sets the {@link SignatureVerifier} used to verify that purchases returned by Google Play were signed with the private key of your app.
+     * <p>Purchases that fail verification are discarded: {@link #onActivityResult(int, int, Intent)} returns {@link #BILLING_RESPONSE_RESULT_ERROR} for them, and purchase queries leave them out.</p>
+     * @param verifier The signature verifier, or <code>null</code> to accept purchases without verification.
+     */
+    public void setSignatureVerifier(final SignatureVerifier verifier) {
+        this.verifier = verifier;
+    }
 
-        return Pair.create(Integer.valueOf(responseCode), products);
+    /**
+     * Sets the Base64-encoded RSA public key of your app, used to verify that purchases returned by Google Play were signed with its private key.
+     * <p>This is a shortcut for {@link #setSignatureVerifier(SignatureVerifier)}. The key is decoded once, here.</p>
+     * @param base64PublicKey The public key of your app, as shown in the Google Play Developer Console, or <code>null</code> to accept purchases without verification.
+     * @throws IllegalArgumentException if the public key is invalid.
+     */
+    public void setPublicKey(final String base64PublicKey) throws IllegalArgumentException {
+        this.verifier = base64PublicKey == null ? null : new SignatureVerifier(base64PublicKey);
     }
 
     /**
-     * Queries information about purchased products made by a user from your app.
-     * <p>Note: Do not call {@link #queryPurchasedProducts} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
-     * @return A pair of request result and a list of {@link Order}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
-     * @throws IllegalStateException if your app is not connected to Google Play.
-     * @throws RemoteException if the request cannot be completed by Google Play.
+     * Sets the {@link CallGuard} that limits the rate of the requests sent to Google Play, and stops sending them while Google Play keeps failing.
+     * <p>Requests rejected by the guard return {@link #BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE} without being sent, along with the product details and purchases already known to this {@link BillingManager}. Requests slightly beyond the rate limit are delayed for at most {@link CallGuard#DEFAULT_MAX_WAIT} by default rather than rejected.</p>
+     * @param guard The call guard, or <code>null</code> to send every request. No guard is set by default.
      */
-    public Pair<Integer, List<Order>> queryPurchasedProducts() throws IllegalStateException, RemoteException {
-        return this.queryPurchased(BillingManager.PURCHASE_TYPE_SUBSCRIPTION, null);
+    public void setCallGuard(final CallGuard guard) {
+        this.guard = guard;
     }
 
     /**
-     * Queries information about purchased subscriptions made by a user from your app.
-     * <p>Note: Do not call {@link #queryPurchasedSubscriptions} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
-     * @return A pair of request result and a list of {@link Order}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
-     * @throws IllegalStateException if your app is not connected to Google Play.
-     * @throws RemoteException if the request cannot be completed by Google Play.
+     * Enables or disables the warm-up, which sends the most common requests to Google Play as soon as your app connects, before it asks for their results.
+     * <p>Must be called before {@link #onCreate()}. See {@link WarmUp} for the requests sent.</p>
+     * @param enabled <code>true</code> to enable the warm-up; <code>false</code> otherwise. The warm-up is disabled by default.
      */
-    public Pair<Integer, List<Order>> queryPurchasedSubscriptions() throws IllegalStateException, RemoteException {
-        return this.queryPurchased(BillingManager.PURCHASE_TYPE_SUBSCRIPTION, null);
+    public void setWarmUpEnabled(final boolean enabled) {
+        this.warmUpEnabled = enabled;
     }
 
-    private Pair<Integer, List<Order>> queryPurchased(final String type, final String continuationToken) throws IllegalStateException, RemoteException {
-        if (this.service == null) {
-            throw new IllegalStateException();
+    /**
+     * Sets the product IDs whose details are requested by the warm-up.
+     * <p>Must be called before {@link #onCreate()}.</p>
+     * @param productIds The product IDs to request.
+     */
+    public void setWarmUpProducts(final String... productIds) {
+        this.warmUpProductIds = productIds.clone();
+    }
+
+    /**
+     * Sets the subscription IDs whose details are requested by the warm-up.
+     * <p>Must be called before {@link #onCreate()}.</p>
+     * @param productIds The subscription IDs to request.
+     */
+    public void setWarmUpSubscriptions(final String... productIds) {
+        this.warmUpSubscriptionIds = productIds.clone();
+    }
+
+    /**
+     * Returns the results of the warm-up, which become available once your app connects to Google Play.
+     * @return The results of the warm-up, or <code>null</code> if the warm-up is not enabled or {@link #onCreate()} has not been called.
+     */
+    public WarmUp getWarmUp() {
+        return this.warmUp;
+    }
+
+    private WarmUp newWarmUp() {
+        final String[] productIds      = this.warmUpProductIds;
+        final String[] subscriptionIds = this.warmUpSubscriptionIds;
+
+        return new WarmUp(new Callable<Integer>() {
+            @Override
+            public Integer call() throws RemoteException {
+                return Integer.valueOf(BillingManager.this.isBillingSupported(BillingManager.PURCHASE_TYPE_INAPP));
+            }
+        }, new Callable<Integer>() {
+            @Override
+            public Integer call() throws RemoteException {
+                return Integer.valueOf(BillingManager.this.isBillingSupported(BillingManager.PURCHASE_TYPE_SUBSCRIPTION));
+            }
+        }, new Callable<Pair<Integer, List<Purchasable>>>() {
+            @Override
+            public Pair<Integer, List<Purchasable>> call() throws RemoteException {
+                return productIds.length == 0 ? Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_OK), Collections.<Purchasable>emptyList()) : BillingManager.this.queryPurchasableProducts(productIds);
+            }
+        }, new Callable<Pair<Integer, List<Purchasable>>>() {
+            @Override
+            public Pair<Integer, List<Purchasable>> call() throws RemoteException {
+                return subscriptionIds.length == 0 ? Pair.create(Integer.valueOf(BillingManager.BILLING_RESPONSE_RESULT_OK), Collections.<Purchasable>emptyList()) : BillingManager.this.queryPurchasableSubscriptions(subscriptionIds);
+            }
+        }, new Callable<Pair<Integer, List<Order>>>() {
+            @Override
+            public Pair<Integer, List<Order>> call() throws RemoteException {
+                return BillingManager.this.queryPurchasedProducts();
+            }
+        }, new Callable<Pair<Integer, List<Order>>>() {
+            @Override
+            public Pair<Integer, List<Order>> call() throws RemoteException {
+                return BillingManager.this.queryPurchasedSubscriptions();
+            }
+        });
+    }
+
+    /**
+     * Returns the latest snapshot of the product details and purchases returned by Google Play to this {@link BillingManager}, indexed by product ID and purchase token.
+     * <p>The snapshot is replaced whenever a query for product details or purchases completes, a purchase is made with {@link #onActivityResult(int, int, Intent)}, or a purchase is consumed. Lookups never block and are safe to call on the main thread.</p>
+     * @return The latest snapshot of product details and purchases.
+     */
+    public ProductIndex getProductIndex() {
+        return this.index;
+    }
+
+    /**
+     * Returns the {@link EntitlementStream} that publishes changes to the purchases owned by the user, as seen by this {@link BillingManager}.
+     * <p>Changes are found whenever purchases are queried, including by {@link #syncPurchaseLedger()} and the warm-up, and when purchases are made with {@link #onActivityResult(int, int, Intent)} or consumed.</p>
+     * @return The stream of changes to the purchases owned by the user.
+     */
+    public EntitlementStream getEntitlementStream() {
+        return this.entitlements;
+    }
+
+    private void indexPurchasables(final List<Purchasable> products) {
+        synchronized (this.indexLock) {
+            this.index = this.index.withPurchasables(products);
+        }
+    }
+
+    /**
+     * Returns the given result with the product details known to the {@link ProductIndex} added for the requested product IDs missing from it, if Google Play is unavailable, so that cached data is served in the meantime.
+     */
+    private Pair<Integer, List<Purchasable>> withIndexedPurchasables(final Pair<Integer, List<Purchasable>> result, final String... productIds) {
+        if (result.first.intValue() != BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE) {
+            return result;
         }
 
-        final Bundle      responses    = this.service.getPurchases(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), type, continuationToken);
-        final int         responseCode = responses.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
-        final List<Order> products     = new ArrayList<Order>();
+        final ProductIndex      index    = this.index;
+        final List<Purchasable> products = new ArrayList<Purchasable>(result.second);
+        final Set<String>       returned = new HashSet<String>(products.size() * 2);
 
-        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
-            for (final String response : responses.getStringArrayList(BillingManager.INAPP_PURCHASE_DATA_LIST)) {
-                try {
-                    final JSONObject json = new JSONObject(response);
+        for (final Purchasable product : products) {
+            returned.add(product.getProductId());
+        }
 
-                    products.add(new Order(json.getString(BillingManager.ORDER_ID), json.getString(BillingManager.PACKAGE_NAME), json.getString(BillingManager.PRODUCT_ID), new Date(json.getLong(BillingManager.PURCHASE_TIME)), json.getInt(BillingManager.PURCHASE_STATE), json.getString(BillingManager.DEVELOPER_PAYLOAD), json.getString(BillingManager.PURCHASE_TOKEN)));
-                } catch (final JSONException e) {
-                    Log.e(this.getClass().getName(), e.getMessage(), e);
-                }
+        for (final String productId : productIds) {
+            final Purchasable product = index.getPurchasable(productId);
+
+            if (product != null && returned.add(productId)) {
+                products.add(product);
             }
+        }
 
-            final String token = responses.getString(BillingManager.INAPP_CONTINUATION_TOKEN);
+        return Pair.create(result.first, products);
+    }
 
-            if (token != null) {
-                final Pair<Integer, List<Order>> pair = this.queryPurchased(type, token);
+    /**
+     * Returns the purchases of the given type known to the {@link PurchaseLedger}, or to the {@link ProductIndex} if no ledger is set, so that they are served while Google Play is unavailable.
+     */
+    private List<Order> getKnownOrders(final String type) {
+        final PurchaseLedger ledger = this.ledger;
+        final List<Order>    orders = new ArrayList<Order>();
 
-                if (pair.first.intValue() == BillingManager.BILLING_RESPONSE_RESULT_OK) {
-                    products.addAll(pair.second);
-                } else {
-                    products.addAll(pair.second);
+        for (final Order order : ledger == null ? this.index.getOrders() : ledger.getOrders()) {
+            // Orders restored from a ledger saved by an earlier version have no type, and are served as products
+            if (type.equals(order.getType() == null ? BillingManager.PURCHASE_TYPE_INAPP : order.getType())) {
+                orders.add(order);
+            }
+        }
 
-                    return Pair.create(pair.first, products);
-                }
+        return orders;
+    }
+
+    /**
+     * Publishes purchases returned by Google Play to the {@link ProductIndex} and the {@link EntitlementStream}, unless a purchase was made or consumed locally since they were requested, in which case they may be outdated and are dropped.
+     * @param startTime The value of {@link System#nanoTime()} when the purchases were requested.
+     * @param products The complete list of purchased products, or <code>null</code> if they were not requested.
+     * @param subscriptions The complete list of purchased subscriptions, or <code>null</code> if they were not requested.
+     */
+    private void publishOrders(final long startTime, final List<Order> products, final List<Order> subscriptions) {
+        synchronized (this.indexLock) {
+            if (this.changeTime - startTime >= 0) {
+                return;
+            }
+
+            if (products != null && subscriptions != null) {
+                final List<Order> orders = new ArrayList<Order>(products.size() + subscriptions.size());
+                orders.addAll(products);
+                orders.addAll(subscriptions);
+
+                this.index = this.index.withOrders(orders, true);
+            } else {
+                this.index = this.index.withOrders(products == null ? subscriptions : products, false);
+            }
+
+            // Published while holding the lock, so that a local change cannot be overwritten in between
+            if (products != null) {
+                this.entitlements.onSnapshot(BillingManager.PURCHASE_TYPE_INAPP, products);
+            }
+
+            if (subscriptions != null) {
+                this.entitlements.onSnapshot(BillingManager.PURCHASE_TYPE_SUBSCRIPTION, subscriptions);
             }
         }
+    }
+
+    private void indexPurchase(final Order order) {
+        synchronized (this.indexLock) {
+            this.index      = this.index.withOrders(Collections.singletonList(order), false);
+            this.changeTime = System.nanoTime();
+        }
+    }
 
-        return Pair.create(Integer.valueOf(responseCode), products);
+    private void unindexOrder(final String purchaseToken) {
+        synchronized (this.indexLock) {
+            this.index      = this.index.withoutOrder(purchaseToken);
+            this.changeTime = System.nanoTime();
+        }
+    }
+
+    private Executor getExecutor() {
+        return this.executor == null ? WorkerPool.get() : this.executor;
     }
 
     /**
-     * Launches a purchase flow for a product. The purchase result will be delivered to {@link Activity#onActivityResult(int, int, Intent)} method, in which you should call {@link #onActivityResult(int, int, Intent)} to get the purchase result.
-     * <p>Note: Do not call {@link #purchase} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
-     * @param requestCode An integer to identify the request in the current session.
-     * @param productId The product ID to purchase.
-     * @param developerPayload Specify any additional arguments that you want Google Play to send back along with the purchase information.
-     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; error otherwise.
-     * @throws IllegalStateException if your app is not connected to Google Play.
-     * @throws SendIntentException if there was an error in sending an intent for purchase.
-     * @throws RemoteException if the request cannot be completed by Google Play.
+     * Submits a request that waits for the connection for at most the pending timeout of the connection.
      */
-    public int purchase(final int requestCode, final String productId, final String developerPayload) throws IllegalStateException, SendIntentException, RemoteException {
-        return this.purchase(requestCode, BillingManager.PURCHASE_TYPE_INAPP, productId, developerPayload);
+    private <T> Future<T> submit(final String key, final Callable<T> callable, final OnResultListener<T> listener) {
+        return this.requests.submit(this.connection.whenConnected(this.getExecutor()), key, callable, this.handler, listener);
     }
 
     /**
-     * Launches a purchase flow for a subscription. The purchase result will be delivered to {@link Activity#onActivityResult(int, int, Intent)} method, in which you should call {@link #onActivityResult(int, int, Intent)} to get the purchase result.
-     * <p>Note: Do not call {@link #subscribe} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
-     * @param requestCode An integer to identify the request in the current session.
-     * @param productId The product ID to subscribe.
-     * @param developerPayload Specify any additional arguments that you want Google Play to send back along with the purchase information.
-     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; error otherwise.
-     * @throws IllegalStateException if your app is not connected to Google Play.
-     * @throws SendIntentException if there was an error in sending an intent for purchase.
-     * @throws RemoteException if the request cannot be completed by Google Play.
+     * Submits a request that waits for the connection for at most the given time.
+     * @param timeout The time the request waits for the connection, in milliseconds.
      */
-    public int subscribe(final int requestCode, final String productId, final String developerPayload) throws IllegalStateException, SendIntentException, RemoteException {
-        return this.purchase(requestCode, BillingManager.PURCHASE_TYPE_SUBSCRIPTION, productId, developerPayload);
+    private <T> Future<T> submit(final String key, final Callable<T> callable, final OnResultListener<T> listener, final long timeout) {
+        return this.requests.submit(this.connection.whenConnected(this.getExecutor(), timeout), key, callable, this.handler, listener);
     }
 
-    private int purchase(final int requestCode, final String type, final String productId, final String developerPayload) throws IllegalStateException, SendIntentException, RemoteException {
-        if (this.service == null) {
+    /**
+     * Runs a request on the calling thread, or waits for the identical request already in flight, whether it was made synchronously or asynchronously.
+     */
+    private <T> T join(final String key, final Callable<T> callable) throws IllegalStateException, RemoteException {
+        if (!this.connection.isConnected()) {
             throw new IllegalStateException();
         }
 
-        final Bundle response     = this.service.getBuyIntent(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), productId, type, developerPayload);
-        final int    responseCode = response.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+        try {
+            return this.requests.join(key, callable);
+        } catch (final ExecutionException e) {
+            throw TaskRunner.unwrap(e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
 
-        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
-            this.activity.startIntentSenderForResult(((PendingIntent)response.getParcelable(BillingManager.BUY_INTENT)).getIntentSender(), requestCode, new Intent(), 0, 0, 0);
+            throw TaskRunner.toRemoteException(e);
         }
+    }
 
-        return responseCode;
+    /**
+     * Queries product details from Google Play that are available for purchase.
+     * <p>Product IDs beyond the number Google Play accepts in a single request are split into multiple requests that run concurrently. Product IDs already being requested by a concurrent query are not requested again; the query waits for their details instead. The response code is {@link #BILLING_RESPONSE_RESULT_OK} only if every request was successful. Otherwise the result is partial: the response code is the first error encountered, the list still contains the products from the successful requests, and each failed request is logged with its product IDs. Compare the list with <code>productIds</code> to find the products that are missing.</p>
+     * <p>Note: Do not call {@link #queryPurchasableProducts} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @param productIds The product IDs to query.
+     * @return A pair of request result and a list of {@link Purchasable}s, in the order of <code>productIds</code>. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play, unless every product is found in the {@link PurchasableCache}.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public Pair<Integer, List<Purchasable>> queryPurchasableProducts(final String... productIds) throws IllegalStateException, RemoteException {
+        return this.queryPurchasables(BillingManager.PURCHASE_TYPE_INAPP, productIds);
     }
 
     /**
-     * Sends a consumption request to Google Play and passes the <code>purchaseToken</code> that identifies the purchase to be removed.
-     * <p>Once a product is purchased, it is considered to be "owned" and cannot be purchased from Google Play. You must send a consumption request for the product before Google Play makes it available for purchase again.</p>
-     * <p>Note: Products are consumable, but subscriptions are not.</p>
-     * <p>Note: Do not call {@link #consume} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
-     * @param purchaseToken Part of the data in an {@link Order} that uniquely identifies a product and user pair.
-     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; error otherwise.
-     * @throws IllegalStateException if your app is not connected to Google Play.
+     * Queries product details from Google Play that are available for purchase, without blocking the calling thread.
+     * <p>Concurrent asynchronous queries for the same products share a single request to Google Play.</p>
+     * @param listener The listener to notify with the result of {@link #queryPurchasableProducts(String...)}, or <code>null</code>.
+     * @param productIds The product IDs to query.
+     * @return A {@link Future} representing the result of {@link #queryPurchasableProducts(String...)}. Cancelling it stops the listener from being notified.
+     */
+    public Future<Pair<Integer, List<Purchasable>>> queryPurchasableProductsAsync(final OnResultListener<Pair<Integer, List<Purchasable>>> listener, final String... productIds) {
+        return this.queryPurchasablesAsync(BillingManager.PURCHASE_TYPE_INAPP, listener, productIds);
+    }
+
+    /**
+     * Queries subscription details from Google Play that are available for subscription.
+     * <p>Product IDs beyond the number Google Play accepts in a single request are split into multiple requests that run concurrently. A failed request makes the result partial, as in {@link #queryPurchasableProducts(String...)}.</p>
+     * <p>Note: Do not call {@link #queryPurchasableSubscriptions} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @param productIds The product IDs to query.
+     * @return A pair of request result and a list of {@link Purchasable}s, in the order of <code>productIds</code>. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play, unless every product is found in the {@link PurchasableCache}.
      * @throws RemoteException if the request cannot be completed by Google Play.
      */
-    public int consume(final String purchaseToken) throws IllegalStateException, RemoteException {
-        if (this.service == null) {
-            throw new IllegalStateException();
-        }
+    public Pair<Integer, List<Purchasable>> queryPurchasableSubscriptions(final String... productIds) throws IllegalStateException, RemoteException {
+        return this.queryPurchasables(BillingManager.PURCHASE_TYPE_SUBSCRIPTION, productIds);
+    }
+
+    /**
+     * Queries subscription details from Google Play that are available for subscription, without blocking the calling thread.
+     * <p>Concurrent asynchronous queries for the same subscriptions share a single request to Google Play.</p>
+     * @param listener The listener to notify with the result of {@link #queryPurchasableSubscriptions(String...)}, or <code>null</code>.
+     * @param productIds The product IDs to query.
+     * @return A {@link Future} representing the result of {@link #queryPurchasableSubscriptions(String...)}. Cancelling it stops the listener from being notified.
+     */
+    public Future<Pair<Integer, List<Purchasable>>> queryPurchasableSubscriptionsAsync(final OnResultListener<Pair<Integer, List<Purchasable>>> listener, final String... productIds) {
+        return this.queryPurchasablesAsync(BillingManager.PURCHASE_TYPE_SUBSCRIPTION, listener, productIds);
+    }
+
+    private Future<Pair<Integer, List<Purchasable>>> queryPurchasablesAsync(final String type, final OnResultListener<Pair<Integer, List<Purchasable>>> listener, final String... productIds) {
+        final String[] sortedIds = productIds.clone();
+        Arrays.sort(sortedIds);
+
+        return this.submit(BillingManager.KEY_ITEM_ID + '/' + type + '/' + Arrays.toString(sortedIds), new Callable<Pair<Integer, List<Purchasable>>>() {
+            @Override
+            public Pair<Integer, List<Purchasable>> call() throws RemoteException {
+                return BillingManager.this.queryPurchasables(type, productIds);
+            }
+        }, listener, BillingManager.QUERY_PENDING_TIMEOUT);
+    }
+
+    private Pair<Integer, List<Purchasable>> queryPurchasables(final String type, final String... productIds) throws IllegalStateException, RemoteException {
+        final IInAppBillingService service = this.connection.getService();
+        final PurchasableCache     cache   = this.cache;
 
-        return this.service.consumePurchase(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), purchaseToken);
+        if (cache == null) {
+            if (service == null) {
+                throw new IllegalStateException();
+            }
+
+            return this.withIndexedPurchasables(this.fetchPurchasables(service, type, productIds), productIds);
+        }
+
+        final Purchasable[] cached = new Purchasable[productIds.length];
+        final List<String>  misses = new ArrayList<String>();
+        final List<String>  stales = new ArrayList<String>();
+
+        for (int i = 0; i < productIds.length; i++) {
+            final PurchasableCache.Entry entry = cache.get(type, productIds[i]);
+
+            if (entry == null) {
+                misses.add(productIds[i]);
+            } else {
+                cached[i] = entry.purchasable;
+
+                if (service != null && cache.isStale(entry) && cache.startRefresh(type, productIds[i])) {
+                    stales.add(productIds[i]);
+                }
+            }
+        }
+
+        // Products fully covered by the cache are served while the connection to Google Play is still being established
+        if (service == null && !misses.isEmpty()) {
+            throw new IllegalStateException();
+        }
+
+        if (!stales.isEmpty()) {
+            this.refreshPurchasables(service, cache, type, stales.toArray(new String[stales.size()]));
+        }
+
+        int                            responseCode = BillingManager.BILLING_RESPONSE_RESULT_OK;
+        final Map<String, Purchasable> fetched      = new HashMap<String, Purchasable>(misses.size() * 2);
+
+        if (!misses.isEmpty()) {
+            final String[]                         missIds = misses.toArray(new String[misses.size()]);
+            final Pair<Integer, List<Purchasable>> pair    = this.fetchPurchasables(service, type, missIds);
+
+            // Only the details returned by Google Play are cached, so the ones served from the index are requested again on the next query
+            for (final Purchasable product : pair.second) {
+                cache.put(type, product);
+            }
+
+            for (final Purchasable product : this.withIndexedPurchasables(pair, missIds).second) {
+                fetched.put(product.getProductId(), product);
+            }
+
+            responseCode = pair.first.intValue();
+        }
+
+        final List<Purchasable> products = new ArrayList<Purchasable>(productIds.length);
+
+        for (int i = 0; i < productIds.length; i++) {
+            final Purchasable product = cached[i] == null ? fetched.get(productIds[i]) : cached[i];
+
+            if (product != null) {
+                products.add(product);
+            }
+        }
+
+        return Pair.create(Integer.valueOf(responseCode), products);
+    }
+
+    private void refreshPurchasables(final IInAppBillingService service, final PurchasableCache cache, final String type, final String... productIds) {
+        try {
+            this.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (final Purchasable product : BillingManager.this.fetchPurchasables(service, type, productIds).second) {
+                            cache.put(type, product);
+                        }
+                    } catch (final RemoteException e) {
+                        Log.w(this.getClass().getName(), e.getMessage(), e);
+                    } finally {
+                        for (final String productId : productIds) {
+                            cache.finishRefresh(type, productId);
+                        }
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            for (final String productId : productIds) {
+                cache.finishRefresh(type, productId);
+            }
+        }
+    }
+
+    /**
+     * Requests product details from Google Play, sharing the requests for product IDs that are already being requested by a concurrent query.
+     */
+    private Pair<Integer, List<Purchasable>> fetchPurchasables(final IInAppBillingService service, final String type, final String... productIds) throws RemoteException {
+        return this.purchasables.query(type, productIds, new PurchasableFlights.Fetcher() {
+            @Override
+            public Pair<Integer, List<Purchasable>> fetch(final String fetchType, final String... fetchIds) throws RemoteException {
+                final Pair<Integer, List<Purchasable>> result = BillingManager.this.requestPurchasables(service, fetchType, fetchIds);
+
+                BillingManager.this.indexPurchasables(result.second);
+
+                return result;
+            }
+        });
+    }
+
+    private Pair<Integer, List<Purchasable>> requestPurchasables(final IInAppBillingService service, final String type, final String... productIds) throws RemoteException {
+        if (productIds.length <= BillingManager.MAX_SKUS_PER_REQUEST) {
+            return this.querySkuDetails(service, type, new ArrayList<String>(Arrays.asList(productIds)));
+        }
+
+        final List<Callable<Pair<Integer, List<Purchasable>>>> chunks   = new ArrayList<Callable<Pair<Integer, List<Purchasable>>>>();
+        final List<List<String>>                               chunkIds = new ArrayList<List<String>>();
+
+        for (int i = 0; i < productIds.length; i += BillingManager.MAX_SKUS_PER_REQUEST) {
+            final ArrayList<String> chunk = new ArrayList<String>(Arrays.asList(productIds).subList(i, Math.min(i + BillingManager.MAX_SKUS_PER_REQUEST, productIds.length)));
+
+            chunkIds.add(chunk);
+            chunks.add(new Callable<Pair<Integer, List<Purchasable>>>() {
+                @Override
+                public Pair<Integer, List<Purchasable>> call() throws RemoteException {
+                    return BillingManager.this.querySkuDetails(service, type, chunk);
+                }
+            });
+        }
+
+        final List<Pair<Integer, List<Purchasable>>> results      = TaskRunner.invokeAll(this.getExecutor(), chunks);
+        int                                          responseCode = BillingManager.BILLING_RESPONSE_RESULT_OK;
+        final List<Purchasable>                      products     = new ArrayList<Purchasable>(productIds.length);
+
+        for (int i = 0; i < results.size(); i++) {
+            final Pair<Integer, List<Purchasable>> pair = results.get(i);
+
+            if (pair.first.intValue() != BillingManager.BILLING_RESPONSE_RESULT_OK) {
+                // Only the first error is returned, so the products missing from a partial result are reported here
+                Log.w(this.getClass().getName(), "Product details request failed with response code " + pair.first + " for " + chunkIds.get(i)); //$NON-NLS-1$ //$NON-NLS-2$
+
+                if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+                    responseCode = pair.first.intValue();
+                }
+            }
+
+            products.addAll(pair.second);
+        }
+
+        return Pair.create(Integer.valueOf(responseCode), products);
+    }
+
+    private Pair<Integer, List<Purchasable>> querySkuDetails(final IInAppBillingService service, final String type, final ArrayList<String> productIds) throws RemoteException {
+        final Bundle bundle = new Bundle();
+        bundle.putStringArrayList(BillingManager.KEY_ITEM_ID, productIds);
+
+        final BillingMetrics    metrics      = this.metrics;
+        final Bundle            responses    = this.getSkuDetails(service, metrics, type, bundle);
+        final int               responseCode = responses.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+        final List<Purchasable> products     = new ArrayList<Purchasable>();
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            final List<String> responseList = responses.getStringArrayList(BillingManager.DETAILS_LIST);
+            int                characters   = 0;
+
+            for (final String response : responseList) {
+                if (Purchasable.isValid(response)) {
+                    products.add(new Purchasable(response));
+
+                    characters += response.length();
+                } else {
+                    metrics.onParseFailure(BillingMetrics.OPERATION_GET_SKU_DETAILS);
+
+                    Log.e(this.getClass().getName(), String.valueOf(response));
+                }
+            }
+
+            metrics.onResponse(BillingMetrics.OPERATION_GET_SKU_DETAILS, responseList.size(), characters);
+        }
+
+        return Pair.create(Integer.valueOf(responseCode), products);
+    }
+
+    /**
+     * Queries information about purchased products made by a user from your app.
+     * <p>Concurrent queries, whether synchronous or asynchronous, share a single request to Google Play.</p>
+     * <p>Note: Do not call {@link #queryPurchasedProducts} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @return A pair of request result and a list of {@link Order}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public Pair<Integer, List<Order>> queryPurchasedProducts() throws IllegalStateException, RemoteException {
+        return this.join(BillingManager.INAPP_PURCHASE_DATA_LIST + '/' + BillingManager.PURCHASE_TYPE_INAPP, this.newPurchasedQuery(BillingManager.PURCHASE_TYPE_INAPP));
+    }
+
+    /**
+     * Queries information about purchased products made by a user from your app, without blocking the calling thread.
+     * <p>Concurrent queries, whether synchronous or asynchronous, share a single request to Google Play.</p>
+     * @param listener The listener to notify with the result of {@link #queryPurchasedProducts()}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #queryPurchasedProducts()}. Cancelling it stops the listener from being notified.
+     */
+    public Future<Pair<Integer, List<Order>>> queryPurchasedProductsAsync(final OnResultListener<Pair<Integer, List<Order>>> listener) {
+        return this.submit(BillingManager.INAPP_PURCHASE_DATA_LIST + '/' + BillingManager.PURCHASE_TYPE_INAPP, this.newPurchasedQuery(BillingManager.PURCHASE_TYPE_INAPP), listener, BillingManager.QUERY_PENDING_TIMEOUT);
+    }
+
+    /**
+     * Queries information about purchased subscriptions made by a user from your app.
+     * <p>Concurrent queries, whether synchronous or asynchronous, share a single request to Google Play.</p>
+     * <p>Note: Do not call {@link #queryPurchasedSubscriptions} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @return A pair of request result and a list of {@link Order}s. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public Pair<Integer, List<Order>> queryPurchasedSubscriptions() throws IllegalStateException, RemoteException {
+        return this.join(BillingManager.INAPP_PURCHASE_DATA_LIST + '/' + BillingManager.PURCHASE_TYPE_SUBSCRIPTION, this.newPurchasedQuery(BillingManager.PURCHASE_TYPE_SUBSCRIPTION));
+    }
+
+    /**
+     * Queries information about purchased subscriptions made by a user from your app, without blocking the calling thread.
+     * <p>Concurrent queries, whether synchronous or asynchronous, share a single request to Google Play.</p>
+     * @param listener The listener to notify with the result of {@link #queryPurchasedSubscriptions()}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #queryPurchasedSubscriptions()}. Cancelling it stops the listener from being notified.
+     */
+    public Future<Pair<Integer, List<Order>>> queryPurchasedSubscriptionsAsync(final OnResultListener<Pair<Integer, List<Order>>> listener) {
+        return this.submit(BillingManager.INAPP_PURCHASE_DATA_LIST + '/' + BillingManager.PURCHASE_TYPE_SUBSCRIPTION, this.newPurchasedQuery(BillingManager.PURCHASE_TYPE_SUBSCRIPTION), listener, BillingManager.QUERY_PENDING_TIMEOUT);
+    }
+
+    /**
+     * Queries information about both purchased products and purchased subscriptions made by a user from your app.
+     * <p>Products and subscriptions are requested concurrently, so the query takes about as long as the slower of {@link #queryPurchasedProducts()} and {@link #queryPurchasedSubscriptions()} instead of both. Concurrent queries, whether synchronous or asynchronous, share a single request to Google Play.</p>
+     * <p>Note: Do not call {@link #queryPurchaseSnapshot} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @return A {@link PurchaseSnapshot} of the purchased products and subscriptions.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public PurchaseSnapshot queryPurchaseSnapshot() throws IllegalStateException, RemoteException {
+        return this.join(PurchaseSnapshot.class.getName(), this.newSnapshotQuery());
+    }
+
+    /**
+     * Queries information about both purchased products and purchased subscriptions made by a user from your app, without blocking the calling thread.
+     * <p>Concurrent queries, whether synchronous or asynchronous, share a single request to Google Play.</p>
+     * @param listener The listener to notify with the result of {@link #queryPurchaseSnapshot()}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #queryPurchaseSnapshot()}. Cancelling it stops the listener from being notified.
+     */
+    public Future<PurchaseSnapshot> queryPurchaseSnapshotAsync(final OnResultListener<PurchaseSnapshot> listener) {
+        return this.submit(PurchaseSnapshot.class.getName(), this.newSnapshotQuery(), listener, BillingManager.QUERY_PENDING_TIMEOUT);
+    }
+
+    /**
+     * Queries information about purchased products made by a user from your app, one page at a time.
+     * <p>Each page is passed to <code>listener</code> as soon as it is returned by Google Play, and the next page is not requested until <code>listener</code> returns. Only one page is held in memory at a time.</p>
+     * <p>Note: Do not call {@link #queryPurchasedProducts(OnPageListener)} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @param listener The listener to receive each page of {@link Order}s. Return <code>false</code> from it to stop querying further pages.
+     * @return {@link #BILLING_RESPONSE_RESULT_OK} if every requested page was returned successfully; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public int queryPurchasedProducts(final OnPageListener listener) throws IllegalStateException, RemoteException {
+        return this.queryPurchased(BillingManager.PURCHASE_TYPE_INAPP, listener);
+    }
+
+    /**
+     * Queries information about purchased subscriptions made by a user from your app, one page at a time.
+     * <p>Each page is passed to <code>listener</code> as soon as it is returned by Google Play, and the next page is not requested until <code>listener</code> returns. Only one page is held in memory at a time.</p>
+     * <p>Note: Do not call {@link #queryPurchasedSubscriptions(OnPageListener)} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @param listener The listener to receive each page of {@link Order}s. Return <code>false</code> from it to stop querying further pages.
+     * @return {@link #BILLING_RESPONSE_RESULT_OK} if every requested page was returned successfully; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public int queryPurchasedSubscriptions(final OnPageListener listener) throws IllegalStateException, RemoteException {
+        return this.queryPurchased(BillingManager.PURCHASE_TYPE_SUBSCRIPTION, listener);
+    }
+
+    private Callable<Pair<Integer, List<Order>>> newPurchasedQuery(final String type) {
+        return new Callable<Pair<Integer, List<Order>>>() {
+            @Override
+            public Pair<Integer, List<Order>> call() throws RemoteException {
+                return BillingManager.this.queryPurchased(type);
+            }
+        };
+    }
+
+    private Pair<Integer, List<Order>> queryPurchased(final String type) throws IllegalStateException, RemoteException {
+        final List<Order> products  = new ArrayList<Order>();
+        final long        startTime = System.nanoTime();
+
+        final int responseCode = this.queryPurchased(type, new OnPageListener() {
+            @Override
+            public boolean onPage(final List<Order> orders) {
+                products.addAll(orders);
+
+                return true;
+            }
+        });
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            this.publishOrders(startTime, BillingManager.PURCHASE_TYPE_INAPP.equals(type) ? products : null, BillingManager.PURCHASE_TYPE_SUBSCRIPTION.equals(type) ? products : null);
+        } else if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE) {
+            return Pair.create(Integer.valueOf(responseCode), this.getKnownOrders(type));
+        }
+
+        return Pair.create(Integer.valueOf(responseCode), products);
+    }
+
+    private Callable<PurchaseSnapshot> newSnapshotQuery() {
+        return new Callable<PurchaseSnapshot>() {
+            @Override
+            public PurchaseSnapshot call() throws RemoteException {
+                return BillingManager.this.querySnapshot();
+            }
+        };
+    }
+
+    /**
+     * Queries the purchased products and subscriptions concurrently, and publishes them to the {@link ProductIndex} and the {@link EntitlementStream} if every page of both was returned successfully.
+     */
+    private PurchaseSnapshot querySnapshot() throws IllegalStateException, RemoteException {
+        final List<Callable<Pair<Integer, List<Order>>>> queries = new ArrayList<Callable<Pair<Integer, List<Order>>>>(2);
+        queries.add(this.newPageQuery(BillingManager.PURCHASE_TYPE_INAPP));
+        queries.add(this.newPageQuery(BillingManager.PURCHASE_TYPE_SUBSCRIPTION));
+
+        final long                             start   = System.nanoTime();
+        final List<Pair<Integer, List<Order>>> results = TaskRunner.invokeAll(this.getExecutor(), queries);
+
+        final Pair<Integer, List<Order>> products      = results.get(0);
+        final Pair<Integer, List<Order>> subscriptions = results.get(1);
+        final int                        responseCode  = products.first.intValue() == BillingManager.BILLING_RESPONSE_RESULT_OK ? subscriptions.first.intValue() : products.first.intValue();
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE) {
+            return new PurchaseSnapshot(responseCode, this.getKnownOrders(BillingManager.PURCHASE_TYPE_INAPP), this.getKnownOrders(BillingManager.PURCHASE_TYPE_SUBSCRIPTION), start, System.nanoTime() - start);
+        }
+
+        if (responseCode != BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            return new PurchaseSnapshot(responseCode, Collections.<Order>emptyList(), Collections.<Order>emptyList(), start, System.nanoTime() - start);
+        }
+
+        this.publishOrders(start, products.second, subscriptions.second);
+
+        return new PurchaseSnapshot(responseCode, products.second, subscriptions.second, start, System.nanoTime() - start);
+    }
+
+    /**
+     * Returns a request for every page of purchases of the given type, following the continuation tokens on the thread that runs it. Nothing is published.
+     */
+    private Callable<Pair<Integer, List<Order>>> newPageQuery(final String type) {
+        return new Callable<Pair<Integer, List<Order>>>() {
+            @Override
+            public Pair<Integer, List<Order>> call() throws RemoteException {
+                final List<Order> orders = new ArrayList<Order>();
+
+                final int responseCode = BillingManager.this.queryPurchased(type, new OnPageListener() {
+                    @Override
+                    public boolean onPage(final List<Order> page) {
+                        orders.addAll(page);
+
+                        return true;
+                    }
+                });
+
+                return Pair.create(Integer.valueOf(responseCode), orders);
+            }
+        };
+    }
+
+    private int queryPurchased(final String type, final OnPageListener listener) throws IllegalStateException, RemoteException {
+        final IInAppBillingService service = this.connection.getService();
+
+        if (service == null) {
+            throw new IllegalStateException();
+        }
+
+        final BillingMetrics    metrics  = this.metrics;
+        final SignatureVerifier verifier = this.verifier;
+
+        String continuationToken = null;
+        int    pages             = 0;
+
+        try {
+            do {
+                final Bundle responses    = this.getPurchases(service, metrics, type, continuationToken);
+                final int    responseCode = responses.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+                pages++;
+
+                if (responseCode != BillingManager.BILLING_RESPONSE_RESULT_OK) {
+                    return responseCode;
+                }
+
+                final List<String> responseList  = responses.getStringArrayList(BillingManager.INAPP_PURCHASE_DATA_LIST);
+                final List<String> signatureList = responses.getStringArrayList(BillingManager.INAPP_DATA_SIGNATURE_LIST);
+                List<Order>        products      = new ArrayList<Order>(responseList.size());
+                int                characters    = 0;
+
+                for (int i = 0; i < responseList.size(); i++) {
+                    final String response = responseList.get(i);
+
+                    if (Order.isValid(response)) {
+                        products.add(new Order(response, signatureList == null || i >= signatureList.size() ? null : signatureList.get(i), type));
+
+                        characters += response.length();
+                    } else {
+                        metrics.onParseFailure(BillingMetrics.OPERATION_GET_PURCHASES);
+
+                        Log.e(this.getClass().getName(), String.valueOf(response));
+                    }
+                }
+
+                metrics.onResponse(BillingMetrics.OPERATION_GET_PURCHASES, responseList.size(), characters);
+
+                if (verifier != null) {
+                    products = this.verify(verifier, metrics, products);
+                }
+
+                if (!listener.onPage(products)) {
+                    break;
+                }
+
+                continuationToken = responses.getString(BillingManager.INAPP_CONTINUATION_TOKEN);
+            } while (continuationToken != null);
+        } finally {
+            metrics.onPages(pages);
+        }
+
+        return BillingManager.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    /**
+     * Returns the orders whose signature is valid, in their original order. Large pages are split into slices that are verified concurrently.
+     */
+    private List<Order> verify(final SignatureVerifier verifier, final BillingMetrics metrics, final List<Order> orders) throws RemoteException {
+        if (orders.size() <= BillingManager.MIN_CONCURRENT_VERIFICATIONS) {
+            return BillingManager.verify(verifier, metrics, orders, 0, orders.size());
+        }
+
+        final List<Callable<List<Order>>> slices = new ArrayList<Callable<List<Order>>>();
+        final int                         size   = (orders.size() + BillingManager.MAX_CONCURRENT_VERIFICATIONS - 1) / BillingManager.MAX_CONCURRENT_VERIFICATIONS;
+
+        for (int i = 0; i < orders.size(); i += size) {
+            final int start = i;
+            final int end   = Math.min(i + size, orders.size());
+
+            slices.add(new Callable<List<Order>>() {
+                @Override
+                public List<Order> call() {
+                    return BillingManager.verify(verifier, metrics, orders, start, end);
+                }
+            });
+        }
+
+        final List<Order> verified = new ArrayList<Order>(orders.size());
+
+        for (final List<Order> slice : TaskRunner.invokeAll(this.getExecutor(), slices)) {
+            verified.addAll(slice);
+        }
+
+        return verified;
+    }
+
+    private static List<Order> verify(final SignatureVerifier verifier, final BillingMetrics metrics, final List<Order> orders, final int start, final int end) {
+        final List<Order> verified = new ArrayList<Order>(end - start);
+
+        for (int i = start; i < end; i++) {
+            final Order order = orders.get(i);
+
+            if (verifier.verify(order)) {
+                verified.add(order);
+            } else {
+                metrics.onVerificationFailure(BillingMetrics.OPERATION_GET_PURCHASES);
+
+                Log.e(BillingManager.class.getName(), "Signature verification failed: " + order.getOriginalJson()); //$NON-NLS-1$
+            }
+        }
+
+        return verified;
+    }
+
+    private Bundle getSkuDetails(final IInAppBillingService service, final BillingMetrics metrics, final String type, final Bundle bundle) throws RemoteException {
+        final CallGuard guard = this.guard;
+
+        if (guard != null && !guard.acquire(BillingMetrics.OPERATION_GET_SKU_DETAILS)) {
+            return BillingManager.newUnavailableResponse();
+        }
+
+        final long start = System.nanoTime();
+
+        try {
+            final Bundle responses    = service.getSkuDetails(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), type, bundle);
+            final int    responseCode = responses.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+            metrics.onCall(BillingMetrics.OPERATION_GET_SKU_DETAILS, System.nanoTime() - start, responseCode);
+            BillingManager.record(guard, BillingMetrics.OPERATION_GET_SKU_DETAILS, responseCode);
+
+            return responses;
+        } catch (final RemoteException e) {
+            metrics.onRemoteException(BillingMetrics.OPERATION_GET_SKU_DETAILS, System.nanoTime() - start);
+            BillingManager.record(guard, BillingMetrics.OPERATION_GET_SKU_DETAILS, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+            throw e;
+        }
+    }
+
+    private Bundle getPurchases(final IInAppBillingService service, final BillingMetrics metrics, final String type, final String continuationToken) throws RemoteException {
+        final CallGuard guard = this.guard;
+
+        if (guard != null && !guard.acquire(BillingMetrics.OPERATION_GET_PURCHASES)) {
+            return BillingManager.newUnavailableResponse();
+        }
+
+        final long start = System.nanoTime();
+
+        try {
+            final Bundle responses    = service.getPurchases(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), type, continuationToken);
+            final int    responseCode = responses.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+            metrics.onCall(BillingMetrics.OPERATION_GET_PURCHASES, System.nanoTime() - start, responseCode);
+            BillingManager.record(guard, BillingMetrics.OPERATION_GET_PURCHASES, responseCode);
+
+            return responses;
+        } catch (final RemoteException e) {
+            metrics.onRemoteException(BillingMetrics.OPERATION_GET_PURCHASES, System.nanoTime() - start);
+            BillingManager.record(guard, BillingMetrics.OPERATION_GET_PURCHASES, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Synchronizes the {@link PurchaseLedger} set with {@link #setPurchaseLedger(PurchaseLedger)} with the purchased products and subscriptions returned by Google Play, and saves it if it has changed.
+     * <p>The ledger is left unchanged unless every page of both product and subscription purchases was returned successfully.</p>
+     * <p>Note: Do not call {@link #syncPurchaseLedger} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play, or no purchase ledger is set.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public int syncPurchaseLedger() throws IllegalStateException, RemoteException {
+        final PurchaseLedger ledger = this.ledger;
+
+        if (ledger == null) {
+            throw new IllegalStateException();
+        }
+
+        final PurchaseSnapshot snapshot     = this.queryPurchaseSnapshot();
+        final int              responseCode = snapshot.getResponseCode();
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK && ledger.sync(snapshot.getOrders(), snapshot.startTime)) {
+            try {
+                ledger.save();
+            } catch (final IOException e) {
+                Log.w(this.getClass().getName(), e.getMessage(), e);
+            }
+        }
+
+        return responseCode;
+    }
+
+    /**
+     * Synchronizes the {@link PurchaseLedger} set with {@link #setPurchaseLedger(PurchaseLedger)} with Google Play, without blocking the calling thread.
+     * @param listener The listener to notify with the result of {@link #syncPurchaseLedger()}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #syncPurchaseLedger()}.
+     */
+    public Future<Integer> syncPurchaseLedgerAsync(final OnResultListener<Integer> listener) {
+        return this.submit(PurchaseLedger.class.getName(), new Callable<Integer>() {
+            @Override
+            public Integer call() throws RemoteException {
+                return Integer.valueOf(BillingManager.this.syncPurchaseLedger());
+            }
+        }, listener, BillingManager.BACKGROUND_PENDING_TIMEOUT);
+    }
+
+    /**
+     * Resolves the purchases in progress in the {@link PurchaseJournal} set with {@link #setPurchaseJournal(PurchaseJournal)} against the purchased products and subscriptions returned by Google Play.
+     * <p>The journal is loaded first if {@link PurchaseJournal#load()} was not called. Google Play is not queried if the journal is empty. Otherwise, the journal is left unchanged unless every page of both product and subscription purchases was returned successfully.</p>
+     * <p>Note: Do not call {@link #reconcilePurchaseJournal} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; {@link #BILLING_RESPONSE_RESULT_ERROR} if the journal cannot be loaded; error otherwise. Use {@link PurchaseJournal#getUnacknowledgedOrders()} afterwards to find the purchases your app has to grant.
+     * @throws IllegalStateException if your app is not connected to Google Play, or no purchase journal is set.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public int reconcilePurchaseJournal() throws IllegalStateException, RemoteException {
+        final PurchaseJournal journal = this.journal;
+
+        if (journal == null) {
+            throw new IllegalStateException();
+        }
+
+        try {
+            journal.loadIfNeeded();
+        } catch (final IOException e) {
+            Log.w(this.getClass().getName(), e.getMessage(), e);
+
+            return BillingManager.BILLING_RESPONSE_RESULT_ERROR;
+        }
+
+        if (journal.isEmpty()) {
+            return BillingManager.BILLING_RESPONSE_RESULT_OK;
+        }
+
+        final PurchaseSnapshot snapshot     = this.queryPurchaseSnapshot();
+        final int              responseCode = snapshot.getResponseCode();
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            try {
+                journal.reconcile(snapshot.getOrders(), snapshot.startTime);
+            } catch (final IOException e) {
+                Log.w(this.getClass().getName(), e.getMessage(), e);
+            }
+        }
+
+        return responseCode;
+    }
+
+    /**
+     * Resolves the purchases in progress in the {@link PurchaseJournal} set with {@link #setPurchaseJournal(PurchaseJournal)} against Google Play, without blocking the calling thread.
+     * @param listener The listener to notify with the result of {@link #reconcilePurchaseJournal()}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #reconcilePurchaseJournal()}.
+     */
+    public Future<Integer> reconcilePurchaseJournalAsync(final OnResultListener<Integer> listener) {
+        return this.submit(PurchaseJournal.class.getName(), new Callable<Integer>() {
+            @Override
+            public Integer call() throws RemoteException {
+                return Integer.valueOf(BillingManager.this.reconcilePurchaseJournal());
+            }
+        }, listener, BillingManager.BACKGROUND_PENDING_TIMEOUT);
+    }
+
+    /**
+     * Launches a purchase flow for a product. The purchase result will be delivered to {@link Activity#onActivityResult(int, int, Intent)} method, in which you should call {@link #onActivityResult(int, int, Intent)} to get the purchase result.
+     * <p>Note: Do not call {@link #purchase} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @param requestCode An integer to identify the request in the current session.
+     * @param productId The product ID to purchase.
+     * @param developerPayload Specify any additional arguments that you want Google Play to send back along with the purchase information.
+     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws SendIntentException if there was an error in sending an intent for purchase.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public int purchase(final int requestCode, final String productId, final String developerPayload) throws IllegalStateException, SendIntentException, RemoteException {
+        return this.purchase(requestCode, BillingManager.PURCHASE_TYPE_INAPP, productId, developerPayload);
+    }
+
+    /**
+     * Launches a purchase flow for a product, without blocking the calling thread.
+     * @param requestCode An integer to identify the request in the current session.
+     * @param productId The product ID to purchase.
+     * @param developerPayload Specify any additional arguments that you want Google Play to send back along with the purchase information.
+     * @param listener The listener to notify with the result of {@link #purchase(int, String, String)}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #purchase(int, String, String)}.
+     */
+    public Future<Integer> purchaseAsync(final int requestCode, final String productId, final String developerPayload, final OnResultListener<Integer> listener) {
+        return this.purchaseAsync(requestCode, BillingManager.PURCHASE_TYPE_INAPP, productId, developerPayload, listener);
+    }
+
+    /**
+     * Launches a purchase flow for a subscription. The purchase result will be delivered to {@link Activity#onActivityResult(int, int, Intent)} method, in which you should call {@link #onActivityResult(int, int, Intent)} to get the purchase result.
+     * <p>Note: Do not call {@link #subscribe} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @param requestCode An integer to identify the request in the current session.
+     * @param productId The product ID to subscribe.
+     * @param developerPayload Specify any additional arguments that you want Google Play to send back along with the purchase information.
+     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws SendIntentException if there was an error in sending an intent for purchase.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public int subscribe(final int requestCode, final String productId, final String developerPayload) throws IllegalStateException, SendIntentException, RemoteException {
+        return this.purchase(requestCode, BillingManager.PURCHASE_TYPE_SUBSCRIPTION, productId, developerPayload);
+    }
+
+    /**
+     * Launches a purchase flow for a subscription, without blocking the calling thread.
+     * @param requestCode An integer to identify the request in the current session.
+     * @param productId The product ID to subscribe.
+     * @param developerPayload Specify any additional arguments that you want Google Play to send back along with the purchase information.
+     * @param listener The listener to notify with the result of {@link #subscribe(int, String, String)}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #subscribe(int, String, String)}.
+     */
+    public Future<Integer> subscribeAsync(final int requestCode, final String productId, final String developerPayload, final OnResultListener<Integer> listener) {
+        return this.purchaseAsync(requestCode, BillingManager.PURCHASE_TYPE_SUBSCRIPTION, productId, developerPayload, listener);
+    }
+
+    private Future<Integer> purchaseAsync(final int requestCode, final String type, final String productId, final String developerPayload, final OnResultListener<Integer> listener) {
+        return this.submit(null, new Callable<Integer>() {
+            @Override
+            public Integer call() throws SendIntentException, RemoteException {
+                return Integer.valueOf(BillingManager.this.purchase(requestCode, type, productId, developerPayload));
+            }
+        }, listener);
+    }
+
+    private int purchase(final int requestCode, final String type, final String productId, final String developerPayload) throws IllegalStateException, SendIntentException, RemoteException {
+        final IInAppBillingService service = this.connection.getService();
+
+        if (service == null) {
+            throw new IllegalStateException();
+        }
+
+        final CallGuard guard = this.guard;
+
+        if (guard != null && !guard.acquire(BillingMetrics.OPERATION_GET_BUY_INTENT)) {
+            return BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE;
+        }
+
+        final BillingMetrics metrics = this.metrics;
+        final long           start   = System.nanoTime();
+        final Bundle         response;
+
+        try {
+            response = service.getBuyIntent(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), productId, type, developerPayload);
+        } catch (final RemoteException e) {
+            metrics.onRemoteException(BillingMetrics.OPERATION_GET_BUY_INTENT, System.nanoTime() - start);
+            BillingManager.record(guard, BillingMetrics.OPERATION_GET_BUY_INTENT, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+            throw e;
+        }
+
+        final int responseCode = response.getInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+        metrics.onCall(BillingMetrics.OPERATION_GET_BUY_INTENT, System.nanoTime() - start, responseCode);
+        BillingManager.record(guard, BillingMetrics.OPERATION_GET_BUY_INTENT, responseCode);
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            if (this.journal != null) {
+                try {
+                    this.journal.recordIntent(requestCode, productId, developerPayload);
+                } catch (final IOException e) {
+                    Log.w(this.getClass().getName(), e.getMessage(), e);
+                }
+            }
+
+            if (this.flows.start(requestCode, type, productId, developerPayload) != null) {
+                Log.w(this.getClass().getName(), "A purchase flow with the same request code is still running: " + requestCode); //$NON-NLS-1$
+            }
+
+            this.launchPurchaseFlow(requestCode, (PendingIntent)response.getParcelable(BillingManager.BUY_INTENT));
+        }
+
+        return responseCode;
+    }
+
+    /**
+     * Starts the purchase flow activity on the main thread, since {@link Activity} is not thread-safe, and waits until it has been started.
+     */
+    private void launchPurchaseFlow(final int requestCode, final PendingIntent buyIntent) throws SendIntentException, RemoteException {
+        final FutureTask<Void> launch = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws SendIntentException {
+                BillingManager.this.activity.startIntentSenderForResult(buyIntent.getIntentSender(), requestCode, new Intent(), 0, 0, 0);
+
+                return null;
+            }
+        });
+
+        // Runs immediately if called on the main thread
+        this.activity.runOnUiThread(launch);
+
+        try {
+            launch.get();
+        } catch (final ExecutionException e) {
+            this.flows.finish(requestCode);
+
+            if (e.getCause() instanceof SendIntentException) {
+                throw (SendIntentException)e.getCause();
+            }
+
+            throw TaskRunner.unwrap(e.getCause());
+        } catch (final InterruptedException e) {
+            if (launch.cancel(false)) {
+                this.flows.finish(requestCode);
+            }
+
+            Thread.currentThread().interrupt();
+
+            throw TaskRunner.toRemoteException(e);
+        }
+    }
+
+    /**
+     * Sends a consumption request to Google Play and passes the <code>purchaseToken</code> that identifies the purchase to be removed.
+     * <p>Once a product is purchased, it is considered to be "owned" and cannot be purchased from Google Play. You must send a consumption request for the product before Google Play makes it available for purchase again.</p>
+     * <p>Note: Products are consumable, but subscriptions are not.</p>
+     * <p>Note: Do not call {@link #consume} method on the main thread. Calling this method triggers a network request which could block your main thread.</p>
+     * @param purchaseToken Part of the data in an {@link Order} that uniquely identifies a product and user pair.
+     * @return {@link #BILLING_RESPONSE_RESULT_OK} if the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the request cannot be completed by Google Play.
+     */
+    public int consume(final String purchaseToken) throws IllegalStateException, RemoteException {
+        final IInAppBillingService service = this.connection.getService();
+
+        if (service == null) {
+            throw new IllegalStateException();
+        }
+
+        final int responseCode = this.consumePurchase(service, purchaseToken);
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+            this.unindexOrder(purchaseToken);
+            this.entitlements.onConsumed(purchaseToken);
+        }
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK && this.ledger != null) {
+            this.ledger.remove(purchaseToken);
+            this.saveLedger(this.ledger);
+        }
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK && this.journal != null) {
+            this.acknowledge(this.journal, purchaseToken);
+        }
+
+        return responseCode;
+    }
+
+    /**
+     * Sends consumption requests to Google Play for multiple purchases, a few at a time.
+     * <p>Requests that fail with {@link #BILLING_RESPONSE_RESULT_ERROR} or {@link RemoteException} are retried, and a request that still throws {@link RemoteException} on its last attempt is reported as {@link #BILLING_RESPONSE_RESULT_ERROR}, so the result of every purchase is returned. If a retried request reports {@link #BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED}, the purchase was consumed by an earlier attempt and the result is {@link #BILLING_RESPONSE_RESULT_OK}.</p>
+     * <p>Note: Do not call {@link #consume} method on the main thread. Calling this method triggers network requests which could block your main thread.</p>
+     * @param purchaseTokens The purchase tokens that identify the purchases to be removed.
+     * @return A map of each purchase token to the result of its consumption request. The value of {@link #BILLING_RESPONSE_RESULT_OK} represents the request was successful; error otherwise.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the calling thread is interrupted.
+     */
+    public Map<String, Integer> consume(final Collection<String> purchaseTokens) throws IllegalStateException, RemoteException {
+        final IInAppBillingService service = this.connection.getService();
+        final PurchaseLedger       ledger  = this.ledger;
+        final PurchaseJournal      journal = this.journal;
+
+        if (service == null) {
+            throw new IllegalStateException();
+        }
+
+        final Queue<String>        queue   = new ConcurrentLinkedQueue<String>(new LinkedHashSet<String>(purchaseTokens));
+        final Map<String, Integer> results = new ConcurrentHashMap<String, Integer>();
+        final List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+
+        for (int i = Math.min(queue.size(), BillingManager.MAX_CONCURRENT_CONSUMES); i > 0; i--) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws RemoteException {
+                    for (String purchaseToken; (purchaseToken = queue.poll()) != null;) {
+                        final int responseCode = BillingManager.this.consume(service, purchaseToken);
+
+                        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+                            BillingManager.this.unindexOrder(purchaseToken);
+                            BillingManager.this.entitlements.onConsumed(purchaseToken);
+                        }
+
+                        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK && ledger != null) {
+                            ledger.remove(purchaseToken);
+                        }
+
+                        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK && journal != null) {
+                            BillingManager.this.acknowledge(journal, purchaseToken);
+                        }
+
+                        results.put(purchaseToken, Integer.valueOf(responseCode));
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        try {
+            TaskRunner.invokeAll(this.getExecutor(), workers);
+        } finally {
+            if (ledger != null) {
+                this.saveLedger(ledger);
+            }
+        }
+
+        return new HashMap<String, Integer>(results);
+    }
+
+    /**
+     * Sends consumption requests to Google Play for multiple orders, a few at a time.
+     * <p>Note: Do not call {@link #consumeOrders} method on the main thread. Calling this method triggers network requests which could block your main thread.</p>
+     * @param orders The orders to be removed.
+     * @return A map of each purchase token to the result of its consumption request, as in {@link #consume(Collection)}.
+     * @throws IllegalStateException if your app is not connected to Google Play.
+     * @throws RemoteException if the calling thread is interrupted.
+     */
+    public Map<String, Integer> consumeOrders(final Collection<Order> orders) throws IllegalStateException, RemoteException {
+        final List<String> purchaseTokens = new ArrayList<String>(orders.size());
+
+        for (final Order order : orders) {
+            purchaseTokens.add(order.getPurchaseToken());
+        }
+
+        return this.consume(purchaseTokens);
+    }
+
+    /**
+     * Sends consumption requests to Google Play for multiple purchases, without blocking the calling thread.
+     * @param purchaseTokens The purchase tokens that identify the purchases to be removed.
+     * @param listener The listener to notify with the result of {@link #consume(Collection)}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #consume(Collection)}.
+     */
+    public Future<Map<String, Integer>> consumeAsync(final Collection<String> purchaseTokens, final OnResultListener<Map<String, Integer>> listener) {
+        return this.submit(null, new Callable<Map<String, Integer>>() {
+            @Override
+            public Map<String, Integer> call() throws RemoteException {
+                return BillingManager.this.consume(purchaseTokens);
+            }
+        }, listener);
+    }
+
+    /**
+     * Consumes a purchase for {@link #consume(Collection)}, retrying failed requests. {@link RemoteException} is retried like {@link #BILLING_RESPONSE_RESULT_ERROR}, and reported as such if every attempt fails, so that it does not discard the results of the other purchases.
+     * @throws RemoteException only if the calling thread is interrupted.
+     */
+    private int consume(final IInAppBillingService service, final String purchaseToken) throws RemoteException {
+        int responseCode = this.tryConsumePurchase(service, purchaseToken);
+
+        for (int retry = 0; retry < BillingManager.MAX_CONSUME_RETRIES && responseCode == BillingManager.BILLING_RESPONSE_RESULT_ERROR; retry++) {
+            try {
+                Thread.sleep(BillingManager.CONSUME_RETRY_DELAY << retry);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw TaskRunner.toRemoteException(e);
+            }
+
+            responseCode = this.tryConsumePurchase(service, purchaseToken);
+
+            if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED) {
+                // The failed attempt did consume the purchase
+                responseCode = BillingManager.BILLING_RESPONSE_RESULT_OK;
+            }
+        }
+
+        return responseCode;
+    }
+
+    private int tryConsumePurchase(final IInAppBillingService service, final String purchaseToken) {
+        try {
+            return this.consumePurchase(service, purchaseToken);
+        } catch (final RemoteException e) {
+            Log.w(this.getClass().getName(), e.getMessage(), e);
+
+            return BillingManager.BILLING_RESPONSE_RESULT_ERROR;
+        }
+    }
+
+    private int isBillingSupported(final String type) throws IllegalStateException, RemoteException {
+        final IInAppBillingService service = this.connection.getService();
+
+        if (service == null) {
+            throw new IllegalStateException();
+        }
+
+        final CallGuard guard = this.guard;
+
+        if (guard != null && !guard.acquire(BillingMetrics.OPERATION_IS_BILLING_SUPPORTED)) {
+            return BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE;
+        }
+
+        final BillingMetrics metrics = this.metrics;
+        final long           start   = System.nanoTime();
+
+        try {
+            final int responseCode = service.isBillingSupported(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), type);
+
+            metrics.onCall(BillingMetrics.OPERATION_IS_BILLING_SUPPORTED, System.nanoTime() - start, responseCode);
+            BillingManager.record(guard, BillingMetrics.OPERATION_IS_BILLING_SUPPORTED, responseCode);
+
+            return responseCode;
+        } catch (final RemoteException e) {
+            metrics.onRemoteException(BillingMetrics.OPERATION_IS_BILLING_SUPPORTED, System.nanoTime() - start);
+            BillingManager.record(guard, BillingMetrics.OPERATION_IS_BILLING_SUPPORTED, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+            throw e;
+        }
+    }
+
+    private int consumePurchase(final IInAppBillingService service, final String purchaseToken) throws RemoteException {
+        final CallGuard guard = this.guard;
+
+        if (guard != null && !guard.acquire(BillingMetrics.OPERATION_CONSUME_PURCHASE)) {
+            return BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE;
+        }
+
+        final BillingMetrics metrics = this.metrics;
+        final long           start   = System.nanoTime();
+
+        try {
+            final int responseCode = service.consumePurchase(BillingManager.INAPP_API_VERSION, this.activity.getPackageName(), purchaseToken);
+
+            metrics.onCall(BillingMetrics.OPERATION_CONSUME_PURCHASE, System.nanoTime() - start, responseCode);
+            BillingManager.record(guard, BillingMetrics.OPERATION_CONSUME_PURCHASE, responseCode);
+
+            return responseCode;
+        } catch (final RemoteException e) {
+            metrics.onRemoteException(BillingMetrics.OPERATION_CONSUME_PURCHASE, System.nanoTime() - start);
+            BillingManager.record(guard, BillingMetrics.OPERATION_CONSUME_PURCHASE, BillingManager.BILLING_RESPONSE_RESULT_ERROR);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Reports the result of a request to the given {@link CallGuard}, if any. Only errors that may be caused by Google Play itself count as failures.
+     */
+    private static void record(final CallGuard guard, final int operation, final int responseCode) {
+        if (guard == null) {
+            return;
+        }
+
+        if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_ERROR || responseCode == BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE) {
+            guard.onFailure(operation);
+        } else {
+            guard.onSuccess(operation);
+        }
+    }
+
+    private static Bundle newUnavailableResponse() {
+        final Bundle response = new Bundle();
+        response.putInt(BillingManager.RESPONSE_CODE, BillingManager.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+
+        return response;
+    }
+
+    private void acknowledge(final PurchaseJournal journal, final String purchaseToken) {
+        try {
+            journal.acknowledge(purchaseToken);
+        } catch (final IOException e) {
+            Log.w(this.getClass().getName(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Records the result of a purchase flow to the journal in the background, as it is flushed to the disk.
+     * @param order The {@link Order} returned by the purchase flow, or <code>null</code> if it was cancelled or failed.
+     */
+    private void recordResult(final PurchaseJournal journal, final int requestCode, final Order order) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (order == null) {
+                        journal.recordCancel(requestCode);
+                    } else {
+                        journal.recordResult(order);
+                    }
+                } catch (final IOException e) {
+                    Log.w(this.getClass().getName(), e.getMessage(), e);
+                }
+            }
+        };
+
+        try {
+            this.getExecutor().execute(task);
+        } catch (final RejectedExecutionException e) {
+            // A purchase must not be lost, even if it costs the calling thread a write to the disk
+            task.run();
+        }
+    }
+
+    private void saveLedger(final PurchaseLedger ledger) {
+        try {
+            this.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ledger.save();
+                    } catch (final IOException e) {
+                        Log.w(this.getClass().getName(), e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            Log.w(this.getClass().getName(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sends a consumption request to Google Play, without blocking the calling thread.
+     * <p>Concurrent asynchronous requests to consume the same purchase share a single request to Google Play.</p>
+     * @param purchaseToken Part of the data in an {@link Order} that uniquely identifies a product and user pair.
+     * @param listener The listener to notify with the result of {@link #consume(String)}, or <code>null</code>.
+     * @return A {@link Future} representing the result of {@link #consume(String)}. Cancelling it stops the listener from being notified.
+     */
+    public Future<Integer> consumeAsync(final String purchaseToken, final OnResultListener<Integer> listener) {
+        return this.submit(BillingManager.PURCHASE_TOKEN + '/' + purchaseToken, new Callable<Integer>() {
+            @Override
+            public Integer call() throws RemoteException {
+                return Integer.valueOf(BillingManager.this.consume(purchaseToken));
+            }
+        }, listener);
     }
 }
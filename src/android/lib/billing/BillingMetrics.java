@@ -0,0 +1,81 @@
+package android.lib.billing;
+
+/**
+ * Receives measurements of the requests {@link BillingManager} sends to Google Play.
+ * <p>Every method does nothing by default; override the ones you need. The methods are called on the thread that sends the request, right after it completes, and are given primitive values only, so that they can be implemented without allocating. Implementations must be thread-safe.</p>
+ * @see BillingStatistics
+ */
+public abstract class BillingMetrics {
+    /** Represents a call to <code>isBillingSupported</code>. */
+    public static final int OPERATION_IS_BILLING_SUPPORTED = 0;
+    /** Represents a call to <code>getSkuDetails</code>. */
+    public static final int OPERATION_GET_SKU_DETAILS      = 1;
+    /** Represents a call to <code>getBuyIntent</code>. */
+    public static final int OPERATION_GET_BUY_INTENT       = 2;
+    /** Represents a call to <code>getPurchases</code>. */
+    public static final int OPERATION_GET_PURCHASES        = 3;
+    /** Represents a call to <code>consumePurchase</code>. */
+    public static final int OPERATION_CONSUME_PURCHASE     = 4;
+
+    /** The number of operations. */
+    static final int OPERATION_COUNT = 5;
+
+    /** Does not record anything. */
+    static final BillingMetrics NONE = new BillingMetrics() {
+    };
+
+    /**
+     * Called when a request to Google Play returns.
+     * @param operation The operation. Possible values are {@link #OPERATION_IS_BILLING_SUPPORTED}, {@link #OPERATION_GET_SKU_DETAILS}, {@link #OPERATION_GET_BUY_INTENT}, {@link #OPERATION_GET_PURCHASES} and {@link #OPERATION_CONSUME_PURCHASE}.
+     * @param latency The time the request took, in nanoseconds.
+     * @param responseCode The response code returned by Google Play.
+     */
+    public void onCall(final int operation, final long latency, final int responseCode) {
+    }
+
+    /**
+     * Called when a request to Google Play throws {@link android.os.RemoteException}.
+     * @param operation The operation.
+     * @param latency The time until the request failed, in nanoseconds.
+     */
+    public void onRemoteException(final int operation, final long latency) {
+    }
+
+    /**
+     * Called when a successful response of Google Play contains a list of products or purchases.
+     * @param operation The operation.
+     * @param items The number of products or purchases in the response.
+     * @param characters The total length of the JSON strings in the response.
+     */
+    public void onResponse(final int operation, final int items, final int characters) {
+    }
+
+    /**
+     * Called when a product or purchase returned by Google Play cannot be parsed, and is skipped.
+     * @param operation The operation.
+     */
+    public void onParseFailure(final int operation) {
+    }
+
+    /**
+     * Called when a purchase returned by Google Play fails signature verification, and is discarded.
+     * @param operation The operation. Possible values are {@link #OPERATION_GET_BUY_INTENT}, for purchase results, and {@link #OPERATION_GET_PURCHASES}.
+     */
+    public void onVerificationFailure(final int operation) {
+    }
+
+    /**
+     * Called when a query for purchases completes.
+     * @param pages The number of pages requested from Google Play.
+     */
+    public void onPages(final int pages) {
+    }
+
+    /**
+     * Called when the result of a purchase flow launched by {@link BillingManager} is delivered to {@link BillingManager#onActivityResult(int, int, android.content.Intent)}.
+     * @param latency The time from the request for the purchase flow to its result, including the time the user spent in the purchase dialog, in nanoseconds.
+     * @param responseCode The response code of the result.
+     */
+    public void onPurchaseFlow(final long latency, final int responseCode) {
+    }
+}
@@ -0,0 +1,205 @@
+package android.lib.billing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates the measurements of the requests {@link BillingManager} sends to Google Play into counters and latency histograms.
+ * <p>Latencies are recorded in buckets of powers of two microseconds, so percentiles are accurate to within a factor of two. Recording never allocates nor locks.</p>
+ */
+public final class BillingStatistics extends BillingMetrics {
+    /** The number of latency buckets. The last bucket holds every latency of about 35 minutes or more. */
+    private static final int LATENCY_BUCKETS = 32;
+    /** The number of response code counters. The last counter holds every unknown response code. */
+    private static final int RESPONSE_CODES  = 10;
+    /** The number of page count buckets. The last bucket holds every query of that many pages or more. */
+    private static final int PAGE_BUCKETS    = 16;
+
+    private final AtomicLongArray latencies        = new AtomicLongArray(BillingMetrics.OPERATION_COUNT * BillingStatistics.LATENCY_BUCKETS);
+    private final AtomicLongArray responseCodes    = new AtomicLongArray(BillingMetrics.OPERATION_COUNT * BillingStatistics.RESPONSE_CODES);
+    private final AtomicLongArray remoteExceptions = new AtomicLongArray(BillingMetrics.OPERATION_COUNT);
+    private final AtomicLongArray items            = new AtomicLongArray(BillingMetrics.OPERATION_COUNT);
+    private final AtomicLongArray characters       = new AtomicLongArray(BillingMetrics.OPERATION_COUNT);
+    private final AtomicLongArray parseFailures    = new AtomicLongArray(BillingMetrics.OPERATION_COUNT);
+    private final AtomicLongArray verifyFailures   = new AtomicLongArray(BillingMetrics.OPERATION_COUNT);
+    private final AtomicLongArray pages            = new AtomicLongArray(BillingStatistics.PAGE_BUCKETS);
+    private final AtomicLongArray flowLatencies    = new AtomicLongArray(BillingStatistics.LATENCY_BUCKETS);
+
+    @Override
+    public void onCall(final int operation, final long latency, final int responseCode) {
+        this.recordLatency(operation, latency);
+        this.responseCodes.incrementAndGet(operation * BillingStatistics.RESPONSE_CODES + (responseCode >= 0 && responseCode < BillingStatistics.RESPONSE_CODES - 1 ? responseCode : BillingStatistics.RESPONSE_CODES - 1));
+    }
+
+    @Override
+    public void onRemoteException(final int operation, final long latency) {
+        this.recordLatency(operation, latency);
+        this.remoteExceptions.incrementAndGet(operation);
+    }
+
+    @Override
+    public void onResponse(final int operation, final int items, final int characters) {
+        this.items.addAndGet(operation, items);
+        this.characters.addAndGet(operation, characters);
+    }
+
+    @Override
+    public void onParseFailure(final int operation) {
+        this.parseFailures.incrementAndGet(operation);
+    }
+
+    @Override
+    public void onVerificationFailure(final int operation) {
+        this.verifyFailures.incrementAndGet(operation);
+    }
+
+    @Override
+    public void onPages(final int pages) {
+        this.pages.incrementAndGet(Math.min(pages, BillingStatistics.PAGE_BUCKETS - 1));
+    }
+
+    @Override
+    public void onPurchaseFlow(final long latency, final int responseCode) {
+        this.flowLatencies.incrementAndGet(BillingStatistics.getLatencyBucket(latency));
+    }
+
+    /**
+     * Returns the number of requests made for an operation, including those that threw {@link android.os.RemoteException}.
+     * @param operation The operation. See {@link BillingMetrics#OPERATION_GET_SKU_DETAILS} and others.
+     * @return The number of requests made for the operation.
+     */
+    public long getCallCount(final int operation) {
+        return BillingStatistics.getCount(this.latencies, operation * BillingStatistics.LATENCY_BUCKETS);
+    }
+
+    /**
+     * Returns the number of requests for an operation that returned the given response code.
+     * @param operation The operation.
+     * @param responseCode The response code, such as {@link BillingManager#BILLING_RESPONSE_RESULT_OK}.
+     * @return The number of requests for the operation that returned the response code.
+     */
+    public long getResponseCodeCount(final int operation, final int responseCode) {
+        return this.responseCodes.get(operation * BillingStatistics.RESPONSE_CODES + (responseCode >= 0 && responseCode < BillingStatistics.RESPONSE_CODES - 1 ? responseCode : BillingStatistics.RESPONSE_CODES - 1));
+    }
+
+    /**
+     * Returns the number of requests for an operation that threw {@link android.os.RemoteException}.
+     * @param operation The operation.
+     * @return The number of requests for the operation that threw {@link android.os.RemoteException}.
+     */
+    public long getRemoteExceptionCount(final int operation) {
+        return this.remoteExceptions.get(operation);
+    }
+
+    /**
+     * Returns the approximate latency of an operation at the given percentile.
+     * @param operation The operation.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the latency bucket containing the percentile, in nanoseconds, or <code>0</code> if no request was made.
+     */
+    public long getLatencyPercentile(final int operation, final double percentile) {
+        return BillingStatistics.getPercentile(this.latencies, operation * BillingStatistics.LATENCY_BUCKETS, percentile);
+    }
+
+    /**
+     * Returns the total number of products or purchases returned by Google Play for an operation.
+     * @param operation The operation.
+     * @return The total number of products or purchases returned for the operation.
+     */
+    public long getItemCount(final int operation) {
+        return this.items.get(operation);
+    }
+
+    /**
+     * Returns the total length of the JSON strings returned by Google Play for an operation.
+     * @param operation The operation.
+     * @return The total length of the JSON strings returned for the operation.
+     */
+    public long getCharacterCount(final int operation) {
+        return this.characters.get(operation);
+    }
+
+    /**
+     * Returns the number of products or purchases returned by Google Play for an operation that could not be parsed.
+     * @param operation The operation.
+     * @return The number of products or purchases that could not be parsed.
+     */
+    public long getParseFailureCount(final int operation) {
+        return this.parseFailures.get(operation);
+    }
+
+    /**
+     * Returns the number of purchases returned by Google Play for an operation that failed signature verification.
+     * @param operation The operation.
+     * @return The number of purchases that failed signature verification.
+     */
+    public long getVerificationFailureCount(final int operation) {
+        return this.verifyFailures.get(operation);
+    }
+
+    /**
+     * Returns the number of purchase queries that requested the given number of pages.
+     * @param pages The number of pages.
+     * @return The number of purchase queries that requested the given number of pages, or at least that many for the largest number tracked.
+     */
+    public long getPageCount(final int pages) {
+        return this.pages.get(Math.min(pages, BillingStatistics.PAGE_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the number of purchase flows whose results were delivered.
+     * @return The number of purchase flows whose results were delivered.
+     */
+    public long getPurchaseFlowCount() {
+        return BillingStatistics.getCount(this.flowLatencies, 0);
+    }
+
+    /**
+     * Returns the approximate end-to-end latency of purchase flows at the given percentile, from the request for the purchase flow to its result.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the latency bucket containing the percentile, in nanoseconds, or <code>0</code> if no result was delivered.
+     */
+    public long getPurchaseFlowLatencyPercentile(final double percentile) {
+        return BillingStatistics.getPercentile(this.flowLatencies, 0, percentile);
+    }
+
+    private void recordLatency(final int operation, final long latency) {
+        this.latencies.incrementAndGet(operation * BillingStatistics.LATENCY_BUCKETS + BillingStatistics.getLatencyBucket(latency));
+    }
+
+    private static int getLatencyBucket(final long latency) {
+        final long micros = latency / 1000;
+
+        return micros <= 1 ? 0 : Math.min(BillingStatistics.LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+    }
+
+    private static long getCount(final AtomicLongArray histogram, final int offset) {
+        long count = 0;
+
+        for (int i = 0; i < BillingStatistics.LATENCY_BUCKETS; i++) {
+            count += histogram.get(offset + i);
+        }
+
+        return count;
+    }
+
+    private static long getPercentile(final AtomicLongArray histogram, final int offset, final double percentile) {
+        final long total = BillingStatistics.getCount(histogram, offset);
+
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank  = (long)Math.ceil(total * percentile / 100);
+        long       count = 0;
+
+        for (int i = 0; i < BillingStatistics.LATENCY_BUCKETS; i++) {
+            count += histogram.get(offset + i);
+
+            if (count >= rank) {
+                return (1L << i) * 1000;
+            }
+        }
+
+        return (1L << (BillingStatistics.LATENCY_BUCKETS - 1)) * 1000;
+    }
+}
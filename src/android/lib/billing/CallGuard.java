@@ -0,0 +1,228 @@
+package android.lib.billing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.RemoteException;
+
+/**
+ * Limits the rate of the requests {@link BillingManager} sends to Google Play, and stops sending them for a while when Google Play keeps failing.
+ * <p>Each operation has its own token bucket and circuit breaker. While the circuit is closed, a request that finds the bucket empty waits briefly for its token, so short bursts are smoothed out; it is rejected as soon as the wait would exceed the maximum wait, so neither the worker threads nor your app are held up while Google Play is slow. The rate of the bucket is halved on every failure and doubled on every success, so retries slow down as Google Play degrades and recover within a few requests once it is healthy again. After a number of consecutive failures the circuit opens, and requests are rejected without being sent until the open time has elapsed. A single probe request is then let through: the circuit closes if it succeeds, and opens again otherwise.</p>
+ * <p>Rejected requests return {@link BillingManager#BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE} immediately. Product details already known to {@link BillingManager#getProductIndex()}, and purchases already known to the {@link PurchaseLedger} or {@link BillingManager#getProductIndex()}, are returned with it.</p>
+ */
+public final class CallGuard {
+    /** Requests are sent normally */
+    public static final int STATE_CLOSED    = 0;
+    /** Requests are rejected without being sent */
+    public static final int STATE_OPEN      = 1;
+    /** A single probe request is sent to find out whether Google Play has recovered */
+    public static final int STATE_HALF_OPEN = 2;
+
+    /** The default maximum number of requests per second for each operation */
+    public static final double DEFAULT_RATE              = 20;
+    /** The default number of requests that can be sent at once for each operation */
+    public static final int    DEFAULT_BURST             = 20;
+    /** The default number of consecutive failures that opens the circuit */
+    public static final int    DEFAULT_FAILURE_THRESHOLD = 5;
+    /** The default time the circuit stays open, in milliseconds */
+    public static final long   DEFAULT_OPEN_TIME         = 30 * 1000;
+    /** The default longest time a request waits for a token while the circuit is closed, in milliseconds */
+    public static final long   DEFAULT_MAX_WAIT          = 250;
+
+    /** The lowest rate the bucket slows down to, in requests per second */
+    private static final double MIN_RATE = 0.5;
+
+    private final Operation[]     operations = new Operation[BillingMetrics.OPERATION_COUNT];
+    private final AtomicLongArray rejected   = new AtomicLongArray(BillingMetrics.OPERATION_COUNT);
+    private final double          maxRate;
+    private final int             burst;
+    private final int             failureThreshold;
+    private final long            openTime;
+    private final long            maxWait;
+
+    /**
+     * Creates a new {@link CallGuard} with the default limits.
+     */
+    public CallGuard() {
+        this(CallGuard.DEFAULT_RATE, CallGuard.DEFAULT_BURST, CallGuard.DEFAULT_FAILURE_THRESHOLD, CallGuard.DEFAULT_OPEN_TIME, CallGuard.DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * Creates a new {@link CallGuard}.
+     * @param rate The maximum number of requests per second for each operation.
+     * @param burst The number of requests that can be sent at once for each operation.
+     * @param failureThreshold The number of consecutive failures that opens the circuit.
+     * @param openTime The time the circuit stays open before a probe request is sent, in milliseconds.
+     * @param maxWait The longest time a request waits for a token while the circuit is closed, in milliseconds. Requests that would wait longer are rejected immediately. Keep it short, since the waiting thread is usually one of the threads running billing requests.
+     */
+    public CallGuard(final double rate, final int burst, final int failureThreshold, final long openTime, final long maxWait) {
+        this.maxRate          = rate;
+        this.burst            = burst;
+        this.failureThreshold = failureThreshold;
+        this.openTime         = openTime * 1000000;
+        this.maxWait          = maxWait * 1000000;
+
+        for (int i = 0; i < this.operations.length; i++) {
+            this.operations[i] = new Operation(rate, burst);
+        }
+    }
+
+    /**
+     * Returns the state of the circuit of an operation.
+     * @param operation The operation. See {@link BillingMetrics#OPERATION_GET_SKU_DETAILS} and others.
+     * @return The state of the circuit. Possible values are {@link #STATE_CLOSED}, {@link #STATE_OPEN} and {@link #STATE_HALF_OPEN}.
+     */
+    public int getState(final int operation) {
+        final Operation op = this.operations[operation];
+
+        synchronized (op) {
+            if (op.state == CallGuard.STATE_OPEN && System.nanoTime() - op.openTime >= this.openTime) {
+                return CallGuard.STATE_HALF_OPEN;
+            }
+
+            return op.state;
+        }
+    }
+
+    /**
+     * Returns the number of requests for an operation that were rejected without being sent, because the circuit was open or the wait for a token was too long.
+     * @param operation The operation.
+     * @return The number of rejected requests.
+     */
+    public long getRejectedCount(final int operation) {
+        return this.rejected.get(operation);
+    }
+
+    /**
+     * Takes a token from the bucket of the given operation, waiting for it if the circuit is closed and the token is due within the maximum wait.
+     * @return <code>true</code> if the request may be sent; <code>false</code> if it must be rejected.
+     * @throws RemoteException if the calling thread is interrupted while waiting.
+     */
+    boolean acquire(final int operation) throws RemoteException {
+        final long wait = this.reserve(operation);
+
+        if (wait < 0) {
+            return false;
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw TaskRunner.toRemoteException(e);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reserves a token from the bucket of the given operation.
+     * @return The time to wait before the token is available, in nanoseconds, or <code>-1</code> if the request must be rejected.
+     */
+    private long reserve(final int operation) {
+        final Operation op  = this.operations[operation];
+        final long      now = System.nanoTime();
+
+        synchronized (op) {
+            if (op.state == CallGuard.STATE_OPEN) {
+                if (now - op.openTime < this.openTime) {
+                    return this.reject(operation);
+                }
+
+                op.state = CallGuard.STATE_HALF_OPEN;
+                op.probe = false;
+            }
+
+            if (op.state == CallGuard.STATE_HALF_OPEN) {
+                // A probe that never reported its result is given up after the open time
+                if (op.probe && now - op.probeTime < this.openTime) {
+                    return this.reject(operation);
+                }
+
+                // The probe bypasses the bucket, so a recovered service is found out as soon as possible
+                op.probe     = true;
+                op.probeTime = now;
+
+                return 0;
+            }
+
+            op.tokens     = Math.min(this.burst, op.tokens + (now - op.refillTime) * op.rate / 1e9);
+            op.refillTime = now;
+
+            // Tokens may go negative: each waiting request holds a reservation, so they are served in turn
+            final long wait = op.tokens >= 1 ? 0 : (long)Math.ceil((1 - op.tokens) * 1e9 / op.rate);
+
+            if (wait > this.maxWait) {
+                return this.reject(operation);
+            }
+
+            op.tokens--;
+
+            return wait;
+        }
+    }
+
+    /**
+     * Records that a request for the given operation succeeded.
+     */
+    void onSuccess(final int operation) {
+        final Operation op = this.operations[operation];
+
+        synchronized (op) {
+            op.failures = 0;
+            op.rate     = Math.min(this.maxRate, op.rate * 2);
+
+            if (op.state == CallGuard.STATE_HALF_OPEN) {
+                op.state  = CallGuard.STATE_CLOSED;
+                op.probe  = false;
+                op.tokens = 1;
+            }
+        }
+    }
+
+    /**
+     * Records that a request for the given operation failed, with {@link BillingManager#BILLING_RESPONSE_RESULT_ERROR} or {@link android.os.RemoteException} for instance.
+     */
+    void onFailure(final int operation) {
+        final Operation op = this.operations[operation];
+
+        synchronized (op) {
+            op.failures++;
+            op.rate = Math.max(CallGuard.MIN_RATE, op.rate / 2);
+
+            if (op.state == CallGuard.STATE_HALF_OPEN || op.failures >= this.failureThreshold) {
+                op.state    = CallGuard.STATE_OPEN;
+                op.openTime = System.nanoTime();
+                op.probe    = false;
+            }
+        }
+    }
+
+    private long reject(final int operation) {
+        this.rejected.incrementAndGet(operation);
+
+        return -1;
+    }
+
+    /**
+     * The token bucket and circuit breaker of an operation. Guarded by its own lock.
+     */
+    private static final class Operation {
+        int     state = CallGuard.STATE_CLOSED;
+        int     failures;
+        long    openTime;
+        boolean probe;
+        long    probeTime;
+        double  rate;
+        double  tokens;
+        long    refillTime;
+
+        Operation(final double rate, final int burst) {
+            this.rate       = rate;
+            this.tokens     = burst;
+            this.refillTime = System.nanoTime();
+        }
+    }
+}
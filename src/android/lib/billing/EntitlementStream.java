@@ -0,0 +1,290 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Publishes changes to the purchases owned by the user, so that your app can react to them instead of querying Google Play again.
+ * <p>Changes are found by comparing each list of purchases returned by Google Play with the previous one of the same type, and from the results of purchase flows and consumption requests sent through {@link BillingManager}.</p>
+ * <p>Each subscriber has its own bounded queue. While a subscriber is busy, further changes to the same purchase replace the pending one, and if the queue is still full the oldest changes are dropped and the subscriber is told to query the purchases again with {@link OnChangeListener#onOverflow()}. A slow subscriber therefore never delays the others, nor the requests to Google Play.</p>
+ */
+public final class EntitlementStream {
+    /** The purchase was made, or seen for the first time */
+    public static final int CHANGE_ADDED    = 0;
+    /** The purchase is no longer owned, because it was consumed or the subscription expired */
+    public static final int CHANGE_REMOVED  = 1;
+    /** The purchase was cancelled */
+    public static final int CHANGE_CANCELED = 2;
+    /** The purchase was refunded */
+    public static final int CHANGE_REFUNDED = 3;
+
+    /** The default maximum number of changes queued for a subscriber */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * A change to a purchase.
+     */
+    public static final class Change {
+        private final int   type;
+        private final Order order;
+
+        Change(final int type, final Order order) {
+            this.type  = type;
+            this.order = order;
+        }
+
+        /**
+         * Returns the type of the change.
+         * @return The type of the change. Possible values are {@link EntitlementStream#CHANGE_ADDED}, {@link EntitlementStream#CHANGE_REMOVED}, {@link EntitlementStream#CHANGE_CANCELED} and {@link EntitlementStream#CHANGE_REFUNDED}.
+         */
+        public int getType() {
+            return this.type;
+        }
+
+        /**
+         * Returns the {@link Order} of the purchase, as last returned by Google Play.
+         * @return The {@link Order} of the purchase.
+         */
+        public Order getOrder() {
+            return this.order;
+        }
+    }
+
+    public interface OnChangeListener {
+        /**
+         * Called with the changes published since the last call, in the order they were published. Only the latest change of each purchase is included.
+         * @param changes The changes.
+         */
+        void onChanges(List<Change> changes);
+
+        /**
+         * Called when changes were dropped because the queue of this subscriber was full. Query the purchases again to catch up.
+         */
+        void onOverflow();
+    }
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    /** The last known order of each purchase, by purchase token */
+    private final Map<String, Order>  orders = new HashMap<String, Order>();
+    /** The type of each purchase, by purchase token, or <code>null</code> if it has not been returned by a query yet */
+    private final Map<String, String> types  = new HashMap<String, String>();
+
+    /**
+     * Subscribes to changes, which are delivered on the main thread.
+     * @param listener The listener to notify of changes.
+     */
+    public void subscribe(final OnChangeListener listener) {
+        this.subscribe(listener, new Handler(Looper.getMainLooper()), EntitlementStream.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Subscribes to changes.
+     * @param listener The listener to notify of changes.
+     * @param handler The handler the listener is called on, or <code>null</code> to call it on the thread that publishes the changes, in which case it must return quickly.
+     * @param capacity The maximum number of changes queued for the listener.
+     */
+    public void subscribe(final OnChangeListener listener, final Handler handler, final int capacity) {
+        this.subscribers.add(new Subscriber(listener, handler, capacity));
+    }
+
+    /**
+     * Stops notifying the given listener of changes. Changes already queued for it are dropped.
+     * @param listener The listener to unsubscribe.
+     */
+    public void unsubscribe(final OnChangeListener listener) {
+        for (final Subscriber subscriber : this.subscribers) {
+            if (subscriber.listener == listener) {
+                subscriber.cancelled = true;
+
+                this.subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Compares the complete list of purchases of a type returned by Google Play with the previous one, and publishes the differences.
+     */
+    void onSnapshot(final String type, final Collection<Order> snapshot) {
+        final List<Change> changes = new ArrayList<Change>();
+
+        synchronized (this) {
+            final Set<String> tokens = new HashSet<String>(snapshot.size() * 2);
+
+            for (final Order order : snapshot) {
+                final String token    = order.getPurchaseToken();
+                final Order  previous = this.orders.get(token);
+
+                tokens.add(token);
+
+                if (previous == null || previous.getPurchaseState() != order.getPurchaseState()) {
+                    changes.add(new Change(EntitlementStream.getChangeType(order.getPurchaseState(), EntitlementStream.CHANGE_ADDED), order));
+                }
+
+                this.orders.put(token, order);
+                this.types.put(token, type);
+            }
+
+            for (final Iterator<Map.Entry<String, String>> i = this.types.entrySet().iterator(); i.hasNext();) {
+                final Map.Entry<String, String> entry = i.next();
+
+                // Purchases of unknown type are kept until a query of their type returns them, or they are consumed
+                if (type.equals(entry.getValue()) && !tokens.contains(entry.getKey())) {
+                    changes.add(new Change(EntitlementStream.CHANGE_REMOVED, this.orders.remove(entry.getKey())));
+
+                    i.remove();
+                }
+            }
+
+            // Published while holding the lock, so that subscribers receive the changes in the order they were found
+            this.publish(changes);
+        }
+    }
+
+    /**
+     * Publishes a purchase made with a purchase flow.
+     */
+    synchronized void onPurchased(final Order order) {
+        final String token = order.getPurchaseToken();
+
+        if (this.orders.containsKey(token)) {
+            return;
+        }
+
+        this.orders.put(token, order);
+        this.types.put(token, null);
+
+        final List<Change> changes = new ArrayList<Change>(1);
+        changes.add(new Change(EntitlementStream.getChangeType(order.getPurchaseState(), EntitlementStream.CHANGE_ADDED), order));
+
+        this.publish(changes);
+    }
+
+    /**
+     * Publishes a purchase consumed with a consumption request. Purchases that have not been published are ignored.
+     */
+    synchronized void onConsumed(final String purchaseToken) {
+        final Order order = this.orders.remove(purchaseToken);
+        this.types.remove(purchaseToken);
+
+        if (order != null) {
+            final List<Change> changes = new ArrayList<Change>(1);
+            changes.add(new Change(EntitlementStream.CHANGE_REMOVED, order));
+
+            this.publish(changes);
+        }
+    }
+
+    private void publish(final List<Change> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        for (final Subscriber subscriber : this.subscribers) {
+            subscriber.offer(changes);
+        }
+    }
+
+    private static int getChangeType(final int purchaseState, final int defaultType) {
+        switch (purchaseState) {
+            case Order.STATE_CANCELED:
+                return EntitlementStream.CHANGE_CANCELED;
+
+            case Order.STATE_REFUNDED:
+                return EntitlementStream.CHANGE_REFUNDED;
+
+            default:
+                return defaultType;
+        }
+    }
+
+    private static final class Subscriber implements Runnable {
+        final OnChangeListener listener;
+
+        private final Handler handler;
+        private final int     capacity;
+
+        /** The pending changes, by purchase token, oldest first */
+        private final LinkedHashMap<String, Change> queue = new LinkedHashMap<String, Change>();
+
+        private boolean scheduled;
+        private boolean overflowed;
+
+        volatile boolean cancelled;
+
+        Subscriber(final OnChangeListener listener, final Handler handler, final int capacity) {
+            this.listener = listener;
+            this.handler  = handler;
+            this.capacity = capacity;
+        }
+
+        void offer(final List<Change> changes) {
+            synchronized (this) {
+                for (final Change change : changes) {
+                    final String token = change.order.getPurchaseToken();
+
+                    // Conflates the pending change of the same purchase, moving it to the end of the queue
+                    this.queue.remove(token);
+                    this.queue.put(token, change);
+                }
+
+                for (final Iterator<String> i = this.queue.keySet().iterator(); this.queue.size() > this.capacity;) {
+                    i.next();
+                    i.remove();
+
+                    this.overflowed = true;
+                }
+
+                if (this.scheduled) {
+                    return;
+                }
+
+                this.scheduled = true;
+            }
+
+            if (this.handler == null) {
+                this.run();
+            } else {
+                this.handler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<Change> changes;
+            final boolean      overflow;
+
+            synchronized (this) {
+                changes  = new ArrayList<Change>(this.queue.values());
+                overflow = this.overflowed;
+
+                this.queue.clear();
+                this.overflowed = false;
+                this.scheduled  = false;
+            }
+
+            if (this.cancelled) {
+                return;
+            }
+
+            if (overflow) {
+                this.listener.onOverflow();
+            }
+
+            if (!changes.isEmpty()) {
+                this.listener.onChanges(changes);
+            }
+        }
+    }
+}
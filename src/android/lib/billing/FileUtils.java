@@ -0,0 +1,75 @@
+package android.lib.billing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Reads and writes the files the library persists its state to.
+ */
+final class FileUtils {
+    private static final String CHARSET     = "UTF-8"; //$NON-NLS-1$
+    private static final String TEMP_PREFIX = "tmp";   //$NON-NLS-1$
+    private static final String TEMP_SUFFIX = ".tmp";  //$NON-NLS-1$
+
+    private FileUtils() {
+    }
+
+    /**
+     * Returns the content of a file, or <code>null</code> if the file does not exist.
+     */
+    static String read(final File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        final StringBuilder  builder = new StringBuilder();
+        final BufferedReader reader  = new BufferedReader(new InputStreamReader(new FileInputStream(file), FileUtils.CHARSET));
+
+        try {
+            final char[] buffer = new char[4096];
+
+            for (int length; (length = reader.read(buffer)) > 0;) {
+                builder.append(buffer, 0, length);
+            }
+        } finally {
+            reader.close();
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Replaces the content of a file. The content is written to a new temporary file in the same directory first, so the file is never left partially written, even by concurrent writers.
+     */
+    static void write(final File file, final String content) throws IOException {
+        final File temp = File.createTempFile(FileUtils.TEMP_PREFIX, FileUtils.TEMP_SUFFIX, file.getAbsoluteFile().getParentFile());
+
+        try {
+            final FileOutputStream stream = new FileOutputStream(temp);
+            final Writer           writer = new OutputStreamWriter(stream, FileUtils.CHARSET);
+
+            try {
+                writer.write(content);
+                writer.flush();
+                stream.getFD().sync();
+            } finally {
+                writer.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                throw new IOException(file.getPath());
+            }
+        } finally {
+            // Left behind only if the content could not be written or renamed
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package android.lib.billing;
+
+/**
+ * Extracts top-level values from a JSON object string without building a tree of JSON objects.
+ * <p>Values other than the one being looked up are skipped over without allocating, so looking up a single field of a purchase is much cheaper than parsing it with {@link org.json.JSONObject}.</p>
+ */
+final class JsonScanner {
+    private final String json;
+    private final int    length;
+
+    private int position;
+
+    private JsonScanner(final String json) {
+        this.json   = json;
+        this.length = json.length();
+    }
+
+    /**
+     * Returns <code>true</code> if the given string is a well-formed JSON object that has a non-null value for each of the given top-level keys; <code>false</code> otherwise.
+     * <p>The whole string is validated, including nested values, so that the lookups of {@link #getString(String, String)} and {@link #getLong(String, String, long)} can skip over values without validating them.</p>
+     * @param requiredKeys The top-level keys that must have a value, at most 31.
+     */
+    static boolean isObject(final String json, final String... requiredKeys) {
+        if (json == null) {
+            return false;
+        }
+
+        final JsonScanner scanner = new JsonScanner(json);
+
+        try {
+            scanner.skipWhitespace();
+
+            final int found = scanner.validateObject(requiredKeys);
+
+            scanner.skipWhitespace();
+
+            return scanner.position == scanner.length && found == (1 << requiredKeys.length) - 1;
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the string value of a top-level key, or <code>null</code> if the key does not exist or its value is <code>null</code>.
+     * <p>Values that are not strings, such as numbers, are returned as they appear in the JSON string.</p>
+     * @throws IllegalArgumentException if the JSON string is malformed.
+     */
+    static String getString(final String json, final String key) {
+        final JsonScanner scanner = new JsonScanner(json);
+
+        if (!scanner.find(key)) {
+            return null;
+        }
+
+        if (scanner.peek() == '"') {
+            return scanner.readString();
+        }
+
+        final int start = scanner.position;
+        scanner.skipValue();
+
+        final String value = json.substring(start, scanner.position);
+
+        return "null".equals(value) ? null : value; //$NON-NLS-1$
+    }
+
+    /**
+     * Returns the numeric value of a top-level key, or <code>defaultValue</code> if the key does not exist or its value is not an integer.
+     * @throws IllegalArgumentException if the JSON string is malformed.
+     */
+    static long getLong(final String json, final String key, final long defaultValue) {
+        final JsonScanner scanner = new JsonScanner(json);
+
+        if (!scanner.find(key)) {
+            return defaultValue;
+        }
+
+        final boolean quoted = scanner.peek() == '"';
+
+        if (quoted) {
+            scanner.position++;
+        }
+
+        final boolean negative = scanner.position < scanner.length && scanner.json.charAt(scanner.position) == '-';
+
+        if (negative) {
+            scanner.position++;
+        }
+
+        long value  = 0;
+        int  digits = 0;
+
+        while (scanner.position < scanner.length) {
+            final char c = scanner.json.charAt(scanner.position);
+
+            if (c < '0' || c > '9') {
+                break;
+            }
+
+            value = value * 10 + (c - '0');
+            digits++;
+            scanner.position++;
+        }
+
+        if (digits == 0) {
+            return defaultValue;
+        }
+
+        final char next = scanner.position < scanner.length ? scanner.json.charAt(scanner.position) : 0;
+
+        if (quoted ? next != '"' : next == '.' || next == 'e' || next == 'E') {
+            return defaultValue;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Moves to the value of the given top-level key.
+     * @param key The key to find.
+     * @return <code>true</code> if the key was found; <code>false</code> otherwise.
+     */
+    private boolean find(final String key) {
+        this.skipWhitespace();
+        this.expect('{');
+        this.skipWhitespace();
+
+        if (this.peek() == '}') {
+            this.position++;
+
+            return false;
+        }
+
+        while (true) {
+            this.skipWhitespace();
+            this.expect('"');
+
+            final int     start   = this.position;
+            final boolean escaped = this.skipStringBody();
+            final int     end     = this.position - 1;
+
+            this.skipWhitespace();
+            this.expect(':');
+            this.skipWhitespace();
+
+            if (!escaped && end - start == key.length() && this.json.regionMatches(start, key, 0, key.length())) {
+                return true;
+            }
+
+            this.skipValue();
+            this.skipWhitespace();
+
+            final char c = this.next();
+
+            if (c == '}') {
+                return false;
+            }
+
+            if (c != ',') {
+                throw new IllegalArgumentException(this.json);
+            }
+        }
+    }
+
+    /**
+     * Validates an object, and finds which of the given keys have a non-null value.
+     * @return A bit mask of the indexes of the keys that have a non-null value.
+     */
+    private int validateObject(final String... keys) {
+        this.expect('{');
+        this.skipWhitespace();
+
+        int found = 0;
+
+        if (this.peek() == '}') {
+            this.position++;
+
+            return found;
+        }
+
+        while (true) {
+            this.skipWhitespace();
+            this.expect('"');
+
+            final int     start   = this.position;
+            final boolean escaped = this.skipStringBody();
+            final int     end     = this.position - 1;
+
+            this.skipWhitespace();
+            this.expect(':');
+            this.skipWhitespace();
+
+            if (!escaped && this.peek() != 'n') {
+                for (int i = 0; i < keys.length; i++) {
+                    if (end - start == keys[i].length() && this.json.regionMatches(start, keys[i], 0, keys[i].length())) {
+                        found |= 1 << i;
+                    }
+                }
+            }
+
+            this.validateValue();
+            this.skipWhitespace();
+
+            final char c = this.next();
+
+            if (c == '}') {
+                return found;
+            }
+
+            if (c != ',') {
+                throw new IllegalArgumentException(this.json);
+            }
+        }
+    }
+
+    private void validateArray() {
+        this.expect('[');
+        this.skipWhitespace();
+
+        if (this.peek() == ']') {
+            this.position++;
+
+            return;
+        }
+
+        while (true) {
+            this.skipWhitespace();
+            this.validateValue();
+            this.skipWhitespace();
+
+            final char c = this.next();
+
+            if (c == ']') {
+                return;
+            }
+
+            if (c != ',') {
+                throw new IllegalArgumentException(this.json);
+            }
+        }
+    }
+
+    private void validateValue() {
+        final char c = this.peek();
+
+        if (c == '"') {
+            this.position++;
+            this.skipStringBody();
+        } else if (c == '{') {
+            this.validateObject();
+        } else if (c == '[') {
+            this.validateArray();
+        } else if (c == 't') {
+            this.expectLiteral("true"); //$NON-NLS-1$
+        } else if (c == 'f') {
+            this.expectLiteral("false"); //$NON-NLS-1$
+        } else if (c == 'n') {
+            this.expectLiteral("null"); //$NON-NLS-1$
+        } else {
+            this.validateNumber();
+        }
+    }
+
+    private void validateNumber() {
+        if (this.peek() == '-') {
+            this.position++;
+        }
+
+        if (this.peek() == '0') {
+            this.position++;
+        } else {
+            this.expectDigits();
+        }
+
+        if (this.position < this.length && this.json.charAt(this.position) == '.') {
+            this.position++;
+            this.expectDigits();
+        }
+
+        if (this.position < this.length && (this.json.charAt(this.position) == 'e' || this.json.charAt(this.position) == 'E')) {
+            this.position++;
+
+            if (this.peek() == '+' || this.peek() == '-') {
+                this.position++;
+            }
+
+            this.expectDigits();
+        }
+    }
+
+    private void expectDigits() {
+        final int start = this.position;
+
+        while (this.position < this.length && this.json.charAt(this.position) >= '0' && this.json.charAt(this.position) <= '9') {
+            this.position++;
+        }
+
+        if (this.position == start) {
+            throw new IllegalArgumentException(this.json);
+        }
+    }
+
+    private void expectLiteral(final String literal) {
+        if (!this.json.startsWith(literal, this.position)) {
+            throw new IllegalArgumentException(this.json);
+        }
+
+        this.position += literal.length();
+    }
+
+    private void skipValue() {
+        final char c = this.peek();
+
+        if (c == '"') {
+            this.position++;
+            this.skipStringBody();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+
+            do {
+                final char d = this.next();
+
+                if (d == '"') {
+                    this.skipStringBody();
+                } else if (d == '{' || d == '[') {
+                    depth++;
+                } else if (d == '}' || d == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            final int start = this.position;
+
+            while (this.position < this.length) {
+                final char d = this.json.charAt(this.position);
+
+                if (d == ',' || d == '}' || d == ']' || Character.isWhitespace(d)) {
+                    break;
+                }
+
+                this.position++;
+            }
+
+            if (this.position == start) {
+                throw new IllegalArgumentException(this.json);
+            }
+        }
+    }
+
+    /**
+     * Skips the rest of a string whose opening quote has been consumed, including the closing quote.
+     * @return <code>true</code> if the string contains escape sequences; <code>false</code> otherwise.
+     */
+    private boolean skipStringBody() {
+        boolean escaped = false;
+
+        while (true) {
+            final char c = this.next();
+
+            if (c == '"') {
+                return escaped;
+            }
+
+            if (c == '\\') {
+                this.next();
+
+                escaped = true;
+            }
+        }
+    }
+
+    private String readString() {
+        this.expect('"');
+
+        final int start = this.position;
+
+        if (!this.skipStringBody()) {
+            return this.json.substring(start, this.position - 1);
+        }
+
+        final StringBuilder builder = new StringBuilder(this.position - start);
+
+        for (int i = start; i < this.position - 1; i++) {
+            final char c = this.json.charAt(i);
+
+            if (c != '\\') {
+                builder.append(c);
+
+                continue;
+            }
+
+            final char e = this.json.charAt(++i);
+
+            switch (e) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+
+                case 'f':
+                    builder.append('\f');
+                    break;
+
+                case 'n':
+                    builder.append('\n');
+                    break;
+
+                case 'r':
+                    builder.append('\r');
+                    break;
+
+                case 't':
+                    builder.append('\t');
+                    break;
+
+                case 'u':
+                    if (i + 4 >= this.position) {
+                        throw new IllegalArgumentException(this.json);
+                    }
+
+                    try {
+                        builder.append((char)Integer.parseInt(this.json.substring(i + 1, i + 5), 16));
+                    } catch (final NumberFormatException x) {
+                        throw new IllegalArgumentException(this.json);
+                    }
+
+                    i += 4;
+                    break;
+
+                default:
+                    builder.append(e);
+                    break;
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private void skipWhitespace() {
+        while (this.position < this.length && Character.isWhitespace(this.json.charAt(this.position))) {
+            this.position++;
+        }
+    }
+
+    private char peek() {
+        if (this.position >= this.length) {
+            throw new IllegalArgumentException(this.json);
+        }
+
+        return this.json.charAt(this.position);
+    }
+
+    private char next() {
+        final char c = this.peek();
+        this.position++;
+
+        return c;
+    }
+
+    private void expect(final char c) {
+        if (this.next() != c) {
+            throw new IllegalArgumentException(this.json);
+        }
+    }
+}
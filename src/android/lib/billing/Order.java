@@ -4,6 +4,7 @@ import java.util.Date;
 
 /**
  * Represents the details of a purchase order.
+ * <p>An {@link Order} wraps the purchase data returned by Google Play, and decodes each field the first time it is accessed.</p>
  */
 public final class Order {
     /** Represents an unknown order state. */
@@ -15,22 +16,76 @@ public final class Order {
     /** Represents a refunded order. */
     public static final int STATE_REFUNDED  = 2;
 
-    private final String orderId;
-    private final String packageName;
-    private final String productId;
-    private final Date   purchaseDate;
-    private final int    purchaseState;
-    private final String developerPayload;
-    private final String purchaseToken;
-
-    Order(final String orderId, final String packageName, final String productId, final Date purchaseDate, final int purchaseState, final String developerPayload, final String purchaseToken) {
-        this.orderId          = orderId;
-        this.packageName      = packageName;
-        this.productId        = productId;
-        this.purchaseDate     = purchaseDate;
-        this.purchaseState    = purchaseState;
-        this.developerPayload = developerPayload;
-        this.purchaseToken    = purchaseToken;
+    private static final String ORDER_ID          = "orderId";          //$NON-NLS-1$
+    private static final String PACKAGE_NAME      = "packageName";      //$NON-NLS-1$
+    private static final String PRODUCT_ID        = "productId";        //$NON-NLS-1$
+    private static final String PURCHASE_TIME     = "purchaseTime";     //$NON-NLS-1$
+    private static final String PURCHASE_STATE    = "purchaseState";    //$NON-NLS-1$
+    private static final String DEVELOPER_PAYLOAD = "developerPayload"; //$NON-NLS-1$
+    private static final String PURCHASE_TOKEN    = "purchaseToken";    //$NON-NLS-1$
+
+    /** The fields without which a purchase is dropped. */
+    private static final String[] REQUIRED_KEYS = { Order.ORDER_ID, Order.PACKAGE_NAME, Order.PRODUCT_ID, Order.PURCHASE_TIME, Order.PURCHASE_STATE, Order.DEVELOPER_PAYLOAD, Order.PURCHASE_TOKEN };
+
+    /** Marks a purchase state that has not been decoded yet. */
+    private static final int    STATE_UNDECODED = Integer.MIN_VALUE;
+    /** Marks a field that has not been decoded yet. Compared by identity, so that it never matches a decoded value. */
+    private static final String UNDECODED       = new String();
+
+    private final String json;
+    private final String signature;
+    private final String type;
+
+    private volatile String orderId          = Order.UNDECODED;
+    private volatile String packageName      = Order.UNDECODED;
+    private volatile String productId        = Order.UNDECODED;
+    private volatile Date   purchaseDate;
+    private volatile int    purchaseState    = Order.STATE_UNDECODED;
+    private volatile String developerPayload = Order.UNDECODED;
+    private volatile String purchaseToken    = Order.UNDECODED;
+
+    /**
+     * Creates a new {@link Order} from the purchase data returned by Google Play. The fields are decoded from <code>json</code> on first access.
+     * <p>Check the purchase data with {@link #isValid(String)} first.</p>
+     * @param json The purchase data, as a JSON string.
+     * @param signature The signature of the purchase data, or <code>null</code> if not known.
+     * @param type The type of the purchase, or <code>null</code> if not known.
+     */
+    Order(final String json, final String signature, final String type) {
+        this.json      = json;
+        this.signature = signature;
+        this.type      = type;
+    }
+
+    /**
+     * Returns <code>true</code> if the given purchase data is a well-formed JSON object with every field of a purchase; <code>false</code> otherwise.
+     */
+    static boolean isValid(final String json) {
+        return JsonScanner.isObject(json, Order.REQUIRED_KEYS);
+    }
+
+    /**
+     * Returns the purchase data as returned by Google Play. This is the data the purchase signature is computed from.
+     * @return The purchase data, as a JSON string.
+     */
+    public String getOriginalJson() {
+        return this.json;
+    }
+
+    /**
+     * Returns the signature of the purchase data, signed by Google Play with the private key of your app.
+     * @return The Base64-encoded signature of the purchase data, or <code>null</code> if not known, such as for orders restored from a {@link PurchaseLedger} saved by an earlier version.
+     */
+    public String getSignature() {
+        return this.signature;
+    }
+
+    /**
+     * Returns whether the purchase is a product or a subscription.
+     * @return {@link BillingManager#PURCHASE_TYPE_INAPP} or {@link BillingManager#PURCHASE_TYPE_SUBSCRIPTION}, or <code>null</code> if not known, such as for orders restored from a {@link PurchaseLedger} saved by an earlier version.
+     */
+    public String getType() {
+        return this.type;
     }
 
     /**
@@ -38,7 +93,15 @@ public final class Order {
      * @return A unique order identifier for the transaction.
      */
     public String getOrderId() {
-        return this.orderId;
+        String value = this.orderId;
+
+        if (value == Order.UNDECODED) {
+            value = JsonScanner.getString(this.json, Order.ORDER_ID);
+
+            this.orderId = value;
+        }
+
+        return value;
     }
 
     /**
@@ -46,7 +109,15 @@ public final class Order {
      * @return The application package from which the purchase originated.
      */
     public String getPackageName() {
-        return this.packageName;
+        String value = this.packageName;
+
+        if (value == Order.UNDECODED) {
+            value = JsonScanner.getString(this.json, Order.PACKAGE_NAME);
+
+            this.packageName = value;
+        }
+
+        return value;
     }
 
     /**
@@ -54,7 +125,15 @@ public final class Order {
      * @return The product identifier.
      */
     public String getProductId() {
-        return this.productId;
+        String value = this.productId;
+
+        if (value == Order.UNDECODED) {
+            value = JsonScanner.getString(this.json, Order.PRODUCT_ID);
+
+            this.productId = value;
+        }
+
+        return value;
     }
 
     /**
@@ -62,6 +141,10 @@ public final class Order {
      * @return The time the product was purchased, in milliseconds since Jan 1, 1970.
      */
     public Date getPurchaseDate() {
+        if (this.purchaseDate == null) {
+            this.purchaseDate = new Date(JsonScanner.getLong(this.json, Order.PURCHASE_TIME, 0));
+        }
+
         return this.purchaseDate;
     }
 
@@ -70,6 +153,10 @@ public final class Order {
      * @return The purchase state of the order. Possible values are {@link #STATE_PURCHASED}, {@link #STATE_CANCELED}, and {@link #STATE_REFUNDED}.
      */
     public int getPurchaseState() {
+        if (this.purchaseState == Order.STATE_UNDECODED) {
+            this.purchaseState = (int)JsonScanner.getLong(this.json, Order.PURCHASE_STATE, Order.STATE_UNKNOWN);
+        }
+
         return this.purchaseState;
     }
 
@@ -78,7 +165,15 @@ public final class Order {
      * @return A developer-specified string that contains supplemental information about an order.
      */
     public String getDeveloperPayload() {
-        return this.developerPayload;
+        String value = this.developerPayload;
+
+        if (value == Order.UNDECODED) {
+            value = JsonScanner.getString(this.json, Order.DEVELOPER_PAYLOAD);
+
+            this.developerPayload = value;
+        }
+
+        return value;
     }
 
     /**
@@ -86,6 +181,14 @@ public final class Order {
      * @return A token that uniquely identifies a purchase for a given product and user pair.
      */
     public String getPurchaseToken() {
-        return this.purchaseToken;
+        String value = this.purchaseToken;
+
+        if (value == Order.UNDECODED) {
+            value = JsonScanner.getString(this.json, Order.PURCHASE_TOKEN);
+
+            this.purchaseToken = value;
+        }
+
+        return value;
     }
 }
@@ -0,0 +1,303 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the products and purchases returned by Google Play, indexed for constant-time lookups.
+ * <p>Each product ID is assigned a compact integer handle the first time it is seen. Handles are stable: a product keeps its handle in every later snapshot, so your app can resolve product IDs to handles once and check prices and entitlements by handle afterwards, without hashing strings.</p>
+ * <p>{@link BillingManager} replaces its snapshot with a new one whenever a query completes, so the snapshot returned by {@link BillingManager#getProductIndex()} can be read from any thread without locking.</p>
+ */
+public final class ProductIndex {
+    /** The handle returned for unknown product IDs. */
+    public static final int NO_HANDLE = -1;
+
+    static final ProductIndex EMPTY = new ProductIndex(Collections.<String, Integer>emptyMap(), new String[0], new Purchasable[0], new Order[0], Collections.<String, Integer>emptyMap());
+
+    private final Map<String, Integer> handles;
+    private final String[]             productIds;
+    private final Purchasable[]        purchasables;
+    private final Order[]              orders;
+    private final Map<String, Integer> handlesByToken;
+
+    private ProductIndex(final Map<String, Integer> handles, final String[] productIds, final Purchasable[] purchasables, final Order[] orders, final Map<String, Integer> handlesByToken) {
+        this.handles        = handles;
+        this.productIds     = productIds;
+        this.purchasables   = purchasables;
+        this.orders         = orders;
+        this.handlesByToken = handlesByToken;
+    }
+
+    /**
+     * Returns the number of product IDs known to this snapshot. Handles range from <code>0</code> to this number, exclusive.
+     * @return The number of product IDs known to this snapshot.
+     */
+    public int size() {
+        return this.productIds.length;
+    }
+
+    /**
+     * Returns the handle of the given product ID, or {@link #NO_HANDLE} if it is unknown to this snapshot.
+     * @param productId The product ID.
+     * @return The handle of the product ID, or {@link #NO_HANDLE} if it is unknown.
+     */
+    public int getHandle(final String productId) {
+        final Integer handle = this.handles.get(productId);
+
+        return handle == null ? ProductIndex.NO_HANDLE : handle.intValue();
+    }
+
+    /**
+     * Returns the product ID of the given handle. The same {@link String} instance is returned for a handle by every snapshot.
+     * @param handle The handle.
+     * @return The product ID of the handle.
+     * @throws IndexOutOfBoundsException if the handle is unknown to this snapshot.
+     */
+    public String getProductId(final int handle) {
+        return this.productIds[handle];
+    }
+
+    /**
+     * Returns the product details of the given handle, or <code>null</code> if they have not been returned by Google Play.
+     * @param handle The handle.
+     * @return The product details of the handle, or <code>null</code>.
+     */
+    public Purchasable getPurchasable(final int handle) {
+        return handle >= 0 && handle < this.purchasables.length ? this.purchasables[handle] : null;
+    }
+
+    /**
+     * Returns the product details of the given product ID, or <code>null</code> if they have not been returned by Google Play.
+     * @param productId The product ID.
+     * @return The product details of the product ID, or <code>null</code>.
+     */
+    public Purchasable getPurchasable(final String productId) {
+        return this.getPurchasable(this.getHandle(productId));
+    }
+
+    /**
+     * Returns the {@link Order} of the given handle, or <code>null</code> if the user does not own the product.
+     * @param handle The handle.
+     * @return The {@link Order} of the handle, or <code>null</code>.
+     */
+    public Order getOrder(final int handle) {
+        return handle >= 0 && handle < this.orders.length ? this.orders[handle] : null;
+    }
+
+    /**
+     * Returns the {@link Order} of the given product ID, or <code>null</code> if the user does not own the product.
+     * @param productId The product ID.
+     * @return The {@link Order} of the product ID, or <code>null</code>.
+     */
+    public Order getOrder(final String productId) {
+        return this.getOrder(this.getHandle(productId));
+    }
+
+    /**
+     * Returns the {@link Order} identified by the given purchase token, or <code>null</code> if this snapshot does not contain it.
+     * @param purchaseToken The purchase token of the order.
+     * @return The {@link Order} identified by the purchase token, or <code>null</code>.
+     */
+    public Order getOrderByToken(final String purchaseToken) {
+        final Integer handle = this.handlesByToken.get(purchaseToken);
+
+        return handle == null ? null : this.orders[handle.intValue()];
+    }
+
+    /**
+     * Returns <code>true</code> if the user owns the product of the given handle; <code>false</code> otherwise.
+     * @param handle The handle.
+     * @return <code>true</code> if the snapshot contains a purchased {@link Order} for the handle; <code>false</code> otherwise.
+     */
+    public boolean isPurchased(final int handle) {
+        final Order order = this.getOrder(handle);
+
+        return order != null && order.getPurchaseState() == Order.STATE_PURCHASED;
+    }
+
+    /**
+     * Returns <code>true</code> if the user owns the given product; <code>false</code> otherwise.
+     * @param productId The product ID.
+     * @return <code>true</code> if the snapshot contains a purchased {@link Order} for the product; <code>false</code> otherwise.
+     */
+    public boolean isPurchased(final String productId) {
+        return this.isPurchased(this.getHandle(productId));
+    }
+
+    /**
+     * Returns the {@link Order}s in this snapshot.
+     */
+    List<Order> getOrders() {
+        final List<Order> orders = new ArrayList<Order>(this.handlesByToken.size());
+
+        for (final Order order : this.orders) {
+            if (order != null) {
+                orders.add(order);
+            }
+        }
+
+        return orders;
+    }
+
+    /**
+     * Returns a new snapshot with the given product details added or replaced.
+     */
+    ProductIndex withPurchasables(final Collection<Purchasable> products) {
+        if (products.isEmpty()) {
+            return this;
+        }
+
+        final Interner interner = new Interner(this);
+        final int[]    handles  = new int[products.size()];
+        int            i        = 0;
+
+        for (final Purchasable product : products) {
+            handles[i++] = interner.intern(product.getProductId());
+        }
+
+        final Purchasable[] purchasables = new Purchasable[interner.size()];
+        System.arraycopy(this.purchasables, 0, purchasables, 0, this.purchasables.length);
+
+        i = 0;
+
+        for (final Purchasable product : products) {
+            purchasables[handles[i++]] = product;
+        }
+
+        return new ProductIndex(interner.handles, interner.toArray(), purchasables, interner.size() == this.orders.length ? this.orders : this.copyOrders(interner.size()), this.handlesByToken);
+    }
+
+    /**
+     * Returns a new snapshot with the given orders added or replaced.
+     * @param replace <code>true</code> if the orders are the complete list of purchases owned by the user, and other orders must be removed.
+     */
+    ProductIndex withOrders(final Collection<Order> orders, final boolean replace) {
+        if (orders.isEmpty() && !replace) {
+            return this;
+        }
+
+        final Interner interner = new Interner(this);
+        final int[]    handles  = new int[orders.size()];
+        int            i        = 0;
+
+        for (final Order order : orders) {
+            handles[i++] = interner.intern(order.getProductId());
+        }
+
+        final Order[]              copy           = replace ? new Order[interner.size()] : this.copyOrders(interner.size());
+        final Map<String, Integer> handlesByToken = replace ? new HashMap<String, Integer>(orders.size() * 2) : new HashMap<String, Integer>(this.handlesByToken);
+
+        i = 0;
+
+        for (final Order order : orders) {
+            final int handle = handles[i++];
+
+            if (copy[handle] != null) {
+                handlesByToken.remove(copy[handle].getPurchaseToken());
+            }
+
+            copy[handle] = order;
+            handlesByToken.put(order.getPurchaseToken(), Integer.valueOf(handle));
+        }
+
+        return new ProductIndex(interner.handles, interner.toArray(), this.copyPurchasables(interner.size()), copy, handlesByToken);
+    }
+
+    /**
+     * Returns a new snapshot without the {@link Order} identified by the given purchase token.
+     */
+    ProductIndex withoutOrder(final String purchaseToken) {
+        final Integer handle = this.handlesByToken.get(purchaseToken);
+
+        if (handle == null) {
+            return this;
+        }
+
+        final Order[]              orders         = this.orders.clone();
+        final Map<String, Integer> handlesByToken = new HashMap<String, Integer>(this.handlesByToken);
+
+        orders[handle.intValue()] = null;
+        handlesByToken.remove(purchaseToken);
+
+        return new ProductIndex(this.handles, this.productIds, this.purchasables, orders, handlesByToken);
+    }
+
+    private Purchasable[] copyPurchasables(final int size) {
+        if (size == this.purchasables.length) {
+            return this.purchasables;
+        }
+
+        final Purchasable[] copy = new Purchasable[size];
+        System.arraycopy(this.purchasables, 0, copy, 0, this.purchasables.length);
+
+        return copy;
+    }
+
+    private Order[] copyOrders(final int size) {
+        final Order[] copy = new Order[size];
+        System.arraycopy(this.orders, 0, copy, 0, this.orders.length);
+
+        return copy;
+    }
+
+    /**
+     * Assigns handles to new product IDs, copying the handles of a snapshot only if a new product ID is found.
+     */
+    private static final class Interner {
+        private final ProductIndex index;
+
+        Map<String, Integer> handles;
+        String[]             productIds;
+        int                  size;
+
+        Interner(final ProductIndex index) {
+            this.index      = index;
+            this.handles    = index.handles;
+            this.productIds = index.productIds;
+            this.size       = index.productIds.length;
+        }
+
+        int intern(final String productId) {
+            final Integer handle = this.handles.get(productId);
+
+            if (handle != null) {
+                return handle.intValue();
+            }
+
+            if (this.handles == this.index.handles) {
+                this.handles = new HashMap<String, Integer>(this.index.handles);
+            }
+
+            if (this.size == this.productIds.length) {
+                final String[] copy = new String[Math.max(16, this.size * 2)];
+                System.arraycopy(this.productIds, 0, copy, 0, this.size);
+
+                this.productIds = copy;
+            }
+
+            this.productIds[this.size] = productId;
+            this.handles.put(productId, Integer.valueOf(this.size));
+
+            return this.size++;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        String[] toArray() {
+            if (this.productIds == this.index.productIds) {
+                return this.productIds;
+            }
+
+            final String[] copy = new String[this.size];
+            System.arraycopy(this.productIds, 0, copy, 0, this.size);
+
+            return copy;
+        }
+    }
+}
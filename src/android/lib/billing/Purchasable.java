@@ -2,18 +2,49 @@ package android.lib.billing;
 
 /**
  * Represents the details of a billable product.
+ * <p>A {@link Purchasable} wraps the product details returned by Google Play, and decodes each field the first time it is accessed.</p>
  */
 public final class Purchasable {
-    private final String productId;
-    private final String title;
-    private final String description;
-    private final String price;
-
-    Purchasable(final String productId, final String title, final String description, final String price) {
-        this.productId   = productId;
-        this.title       = title;
-        this.description = description;
-        this.price       = price;
+    private static final String PRODUCT_ID  = "productId";   //$NON-NLS-1$
+    private static final String TITLE       = "title";       //$NON-NLS-1$
+    private static final String DESCRIPTION = "description"; //$NON-NLS-1$
+    private static final String PRICE       = "price";       //$NON-NLS-1$
+
+    /** The fields without which product details are dropped. */
+    private static final String[] REQUIRED_KEYS = { Purchasable.PRODUCT_ID, Purchasable.TITLE, Purchasable.DESCRIPTION, Purchasable.PRICE };
+
+    /** Marks a field that has not been decoded yet. Compared by identity, so that it never matches a decoded value. */
+    private static final String UNDECODED = new String();
+
+    private final String json;
+
+    private volatile String productId   = Purchasable.UNDECODED;
+    private volatile String title       = Purchasable.UNDECODED;
+    private volatile String description = Purchasable.UNDECODED;
+    private volatile String price       = Purchasable.UNDECODED;
+
+    /**
+     * Creates a new {@link Purchasable} from the product details returned by Google Play. The fields are decoded from <code>json</code> on first access.
+     * <p>Check the product details with {@link #isValid(String)} first.</p>
+     * @param json The product details, as a JSON string.
+     */
+    Purchasable(final String json) {
+        this.json = json;
+    }
+
+    /**
+     * Returns <code>true</code> if the given product details are a well-formed JSON object with every field of a product; <code>false</code> otherwise.
+     */
+    static boolean isValid(final String json) {
+        return JsonScanner.isObject(json, Purchasable.REQUIRED_KEYS);
+    }
+
+    /**
+     * Returns the product details as returned by Google Play.
+     * @return The product details, as a JSON string.
+     */
+    public String getOriginalJson() {
+        return this.json;
     }
 
     /**
@@ -21,7 +52,15 @@ public final class Purchasable {
      * @return The product ID for the billable product.
      */
     public String getProductId() {
-        return this.productId;
+        String value = this.productId;
+
+        if (value == Purchasable.UNDECODED) {
+            value = JsonScanner.getString(this.json, Purchasable.PRODUCT_ID);
+
+            this.productId = value;
+        }
+
+        return value;
     }
 
     /**
@@ -29,7 +68,15 @@ public final class Purchasable {
      * @return The title of the billable product.
      */
     public String getTitle() {
-        return this.title;
+        String value = this.title;
+
+        if (value == Purchasable.UNDECODED) {
+            value = JsonScanner.getString(this.json, Purchasable.TITLE);
+
+            this.title = value;
+        }
+
+        return value;
     }
 
     /**
@@ -37,7 +84,15 @@ public final class Purchasable {
      * @return The description of the billable product.
      */
     public String getDescription() {
-        return this.description;
+        String value = this.description;
+
+        if (value == Purchasable.UNDECODED) {
+            value = JsonScanner.getString(this.json, Purchasable.DESCRIPTION);
+
+            this.description = value;
+        }
+
+        return value;
     }
 
     /**
@@ -45,6 +100,14 @@ public final class Purchasable {
      * @return The formatted prices of the billable product, including its currency sign.
      */
     public String getPrice() {
-        return this.price;
+        String value = this.price;
+
+        if (value == Purchasable.UNDECODED) {
+            value = JsonScanner.getString(this.json, Purchasable.PRICE);
+
+            this.price = value;
+        }
+
+        return value;
     }
 }
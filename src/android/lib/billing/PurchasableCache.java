@@ -0,0 +1,226 @@
+package android.lib.billing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Caches the details of billable products returned by Google Play, so that repeated queries for the same products do not go through Google Play again.
+ * <p>Entries older than the time-to-live are still served, but are refreshed in the background the next time they are queried.</p>
+ * <p>The cache can be saved to and restored from a file, so that prices can be displayed right after the app starts.</p>
+ */
+public final class PurchasableCache {
+    /** The default maximum number of products kept in the cache. */
+    public static final int  DEFAULT_MAX_SIZE = 500;
+    /** The default time-to-live of a cache entry, in milliseconds. */
+    public static final long DEFAULT_TTL      = 60 * 60 * 1000;
+
+    private static final String TYPE    = "type";    //$NON-NLS-1$
+    private static final String DETAILS = "details"; //$NON-NLS-1$
+    private static final String TIME    = "time";    //$NON-NLS-1$
+
+    static final class Entry {
+        final String      type;
+        final Purchasable purchasable;
+        final long        time;
+
+        Entry(final String type, final Purchasable purchasable, final long time) {
+            this.type        = type;
+            this.purchasable = purchasable;
+            this.time        = time;
+        }
+    }
+
+    private final LruCache<String, Entry> entries;
+    private final Set<String>             refreshing = new HashSet<String>();
+    private final long                    ttl;
+
+    private final AtomicLong hitCount      = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong missCount     = new AtomicLong();
+
+    /**
+     * Creates a new {@link PurchasableCache} with the default maximum size and time-to-live.
+     */
+    public PurchasableCache() {
+        this(PurchasableCache.DEFAULT_MAX_SIZE, PurchasableCache.DEFAULT_TTL);
+    }
+
+    /**
+     * Creates a new {@link PurchasableCache}.
+     * @param maxSize The maximum number of products kept in the cache. The least recently used products are evicted first.
+     * @param ttl The time-to-live of a cache entry, in milliseconds.
+     */
+    public PurchasableCache(final int maxSize, final long ttl) {
+        this.entries = new LruCache<String, Entry>(maxSize);
+        this.ttl     = ttl;
+    }
+
+    /**
+     * Returns the number of queried products that were found in the cache and had not expired.
+     * @return The number of queried products that were found in the cache and had not expired.
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Returns the number of queried products that were found in the cache but had expired, and were served while being refreshed.
+     * @return The number of queried products that were found in the cache but had expired.
+     */
+    public long getStaleHitCount() {
+        return this.staleHitCount.get();
+    }
+
+    /**
+     * Returns the number of queried products that were not found in the cache.
+     * @return The number of queried products that were not found in the cache.
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * Removes all products from the cache.
+     */
+    public void clear() {
+        this.entries.evictAll();
+    }
+
+    /**
+     * Restores the products saved by {@link #saveSnapshot(File)}. The restored products keep the time they were retrieved from Google Play, so expired products are refreshed the next time they are queried.
+     * <p>A product already in the cache is replaced only if the restored details were retrieved more recently, so that details returned by Google Play while the file was being read are kept.</p>
+     * <p>Nothing is restored if the file does not exist.</p>
+     * @param file The file to restore the products from.
+     * @throws IOException if the file cannot be read or is corrupted.
+     */
+    public void loadSnapshot(final File file) throws IOException {
+        final String content = FileUtils.read(file);
+
+        if (content == null) {
+            return;
+        }
+
+        try {
+            final JSONArray array = new JSONArray(content);
+
+            for (int i = 0; i < array.length(); i++) {
+                final JSONObject json    = array.getJSONObject(i);
+                final String     type    = json.getString(PurchasableCache.TYPE);
+                final String     details = json.getString(PurchasableCache.DETAILS);
+
+                if (Purchasable.isValid(details)) {
+                    this.putIfNewer(type, new Purchasable(details), json.getLong(PurchasableCache.TIME));
+                }
+            }
+        } catch (final JSONException e) {
+            throw (IOException)new IOException(e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * Saves the products in the cache to a file, so that they can be restored by {@link #loadSnapshot(File)} when the app starts again.
+     * @param file The file to save the products to.
+     * @throws IOException if the file cannot be written.
+     */
+    public void saveSnapshot(final File file) throws IOException {
+        final JSONArray array = new JSONArray();
+
+        try {
+            for (final Entry entry : this.entries.snapshot().values()) {
+                final JSONObject json = new JSONObject();
+                json.put(PurchasableCache.TYPE, entry.type);
+                json.put(PurchasableCache.DETAILS, entry.purchasable.getOriginalJson());
+                json.put(PurchasableCache.TIME, entry.time);
+
+                array.put(json);
+            }
+        } catch (final JSONException e) {
+            throw (IOException)new IOException(e.getMessage()).initCause(e);
+        }
+
+        FileUtils.write(file, array.toString());
+    }
+
+    /**
+     * Returns the cached details of a product, even if they have expired, without querying Google Play nor updating the hit and miss counters.
+     * <p>Use it to display the prices restored by {@link #loadSnapshot(File)} before your app is connected to Google Play.</p>
+     * @param type The type of the product. Possible values are {@link BillingManager#PURCHASE_TYPE_INAPP} and {@link BillingManager#PURCHASE_TYPE_SUBSCRIPTION}.
+     * @param productId The product ID.
+     * @return The details of the product, or <code>null</code> if it is not in the cache.
+     */
+    public Purchasable getPurchasable(final String type, final String productId) {
+        final Entry entry = this.entries.get(PurchasableCache.key(type, productId));
+
+        return entry == null ? null : entry.purchasable;
+    }
+
+    /**
+     * Returns the cache entry of a product and updates the hit and miss counters, or <code>null</code> if the product is not in the cache.
+     */
+    Entry get(final String type, final String productId) {
+        final Entry entry = this.entries.get(PurchasableCache.key(type, productId));
+
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+        } else if (this.isStale(entry)) {
+            this.staleHitCount.incrementAndGet();
+        } else {
+            this.hitCount.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    boolean isStale(final Entry entry) {
+        return System.currentTimeMillis() - entry.time > this.ttl;
+    }
+
+    void put(final String type, final Purchasable purchasable) {
+        this.entries.put(PurchasableCache.key(type, purchasable.getProductId()), new Entry(type, purchasable, System.currentTimeMillis()));
+    }
+
+    /**
+     * Adds the details of a product, unless the cache already holds details of the same product retrieved at the same time or later.
+     */
+    private void putIfNewer(final String type, final Purchasable purchasable, final long time) {
+        final String key = PurchasableCache.key(type, purchasable.getProductId());
+
+        // LruCache synchronizes on itself, so no other put can run between get and put
+        synchronized (this.entries) {
+            final Entry entry = this.entries.get(key);
+
+            if (entry == null || entry.time < time) {
+                this.entries.put(key, new Entry(type, purchasable, time));
+            }
+        }
+    }
+
+    /**
+     * Marks a product as being refreshed.
+     * @return <code>true</code> if the product was not already being refreshed; <code>false</code> otherwise.
+     */
+    boolean startRefresh(final String type, final String productId) {
+        synchronized (this.refreshing) {
+            return this.refreshing.add(PurchasableCache.key(type, productId));
+        }
+    }
+
+    void finishRefresh(final String type, final String productId) {
+        synchronized (this.refreshing) {
+            this.refreshing.remove(PurchasableCache.key(type, productId));
+        }
+    }
+
+    private static String key(final String type, final String productId) {
+        return type + '/' + productId;
+    }
+}
@@ -0,0 +1,148 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.RemoteException;
+import android.util.Pair;
+
+/**
+ * Merges concurrent queries for product details, so that each product ID is requested from Google Play by one query at a time.
+ * <p>A query requests only the product IDs that no other query is requesting, then waits for the others and fans their results back out. Queries with overlapping product IDs therefore share the overlapping part of their requests.</p>
+ */
+final class PurchasableFlights {
+    /**
+     * Requests product details from Google Play.
+     */
+    interface Fetcher {
+        Pair<Integer, List<Purchasable>> fetch(String type, String... productIds) throws RemoteException;
+    }
+
+    private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+    /**
+     * Queries product details, requesting only the product IDs that are not in flight and joining the others.
+     * @param type The product type.
+     * @param productIds The product IDs to query. Duplicates are queried once.
+     * @param fetcher The fetcher that requests the product IDs not in flight.
+     * @return A pair of request result and a list of {@link Purchasable}s, in the order of <code>productIds</code>. The response code is the first error encountered by any of the shared requests, if any.
+     * @throws RemoteException if any of the shared requests cannot be completed by Google Play, or if the calling thread is interrupted.
+     */
+    Pair<Integer, List<Purchasable>> query(final String type, final String[] productIds, final Fetcher fetcher) throws RemoteException {
+        final Set<String>  uniqueIds = new LinkedHashSet<String>(Arrays.asList(productIds));
+        final List<Slot>   required  = new ArrayList<Slot>(uniqueIds.size());
+        final List<String> ownedIds  = new ArrayList<String>(uniqueIds.size());
+        final List<Slot>   owned     = new ArrayList<Slot>(uniqueIds.size());
+
+        synchronized (this.slots) {
+            for (final String productId : uniqueIds) {
+                final String key  = PurchasableFlights.getKey(type, productId);
+                Slot         slot = this.slots.get(key);
+
+                if (slot == null) {
+                    slot = new Slot();
+                    this.slots.put(key, slot);
+
+                    ownedIds.add(productId);
+                    owned.add(slot);
+                }
+
+                required.add(slot);
+            }
+        }
+
+        if (!owned.isEmpty()) {
+            this.fetch(type, ownedIds, owned, fetcher);
+        }
+
+        int                     responseCode = BillingManager.BILLING_RESPONSE_RESULT_OK;
+        final List<Purchasable> products     = new ArrayList<Purchasable>(required.size());
+
+        try {
+            for (final Slot slot : required) {
+                slot.latch.await();
+
+                if (slot.failure != null) {
+                    throw TaskRunner.unwrap(slot.failure);
+                }
+
+                if (responseCode == BillingManager.BILLING_RESPONSE_RESULT_OK) {
+                    responseCode = slot.responseCode;
+                }
+
+                if (slot.purchasable != null) {
+                    products.add(slot.purchasable);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw TaskRunner.toRemoteException(e);
+        }
+
+        return Pair.create(Integer.valueOf(responseCode), products);
+    }
+
+    /**
+     * Requests the given product IDs and completes their slots, even if the request fails.
+     */
+    private void fetch(final String type, final List<String> productIds, final List<Slot> owned, final Fetcher fetcher) {
+        Pair<Integer, List<Purchasable>> result  = null;
+        Throwable                        failure = null;
+
+        try {
+            result = fetcher.fetch(type, productIds.toArray(new String[productIds.size()]));
+        } catch (final RemoteException e) {
+            failure = e;
+        } catch (final RuntimeException e) {
+            failure = e;
+        } catch (final Error e) {
+            failure = e;
+        } finally {
+            final Map<String, Purchasable> products = new HashMap<String, Purchasable>();
+
+            if (result != null) {
+                for (final Purchasable product : result.second) {
+                    products.put(product.getProductId(), product);
+                }
+            }
+
+            synchronized (this.slots) {
+                for (final String productId : productIds) {
+                    this.slots.remove(PurchasableFlights.getKey(type, productId));
+                }
+            }
+
+            for (int i = 0; i < owned.size(); i++) {
+                final Slot slot = owned.get(i);
+
+                slot.responseCode = result == null ? BillingManager.BILLING_RESPONSE_RESULT_ERROR : result.first.intValue();
+                slot.purchasable  = products.get(productIds.get(i));
+                slot.failure      = failure;
+
+                slot.latch.countDown();
+            }
+        }
+    }
+
+    private static String getKey(final String type, final String productId) {
+        return type + '/' + productId;
+    }
+
+    /**
+     * Holds the result of one product ID being requested. The fields are written once, before the latch is released.
+     */
+    private static final class Slot {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        int         responseCode;
+        Purchasable purchasable;
+        Throwable   failure;
+    }
+}
@@ -0,0 +1,65 @@
+package android.lib.billing;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the purchase flows launched by {@link BillingManager}, by request code, so that each result delivered to {@link android.app.Activity#onActivityResult} is matched to the flow that launched it.
+ * <p>Flows whose result never arrives, because the activity was killed for instance, are expired after a timeout so that they do not accumulate.</p>
+ */
+final class PurchaseFlows {
+    /**
+     * A purchase flow waiting for its result.
+     */
+    static final class Flow {
+        final String type;
+        final String productId;
+        final String developerPayload;
+        final long   startTime;
+
+        Flow(final String type, final String productId, final String developerPayload, final long startTime) {
+            this.type             = type;
+            this.productId        = productId;
+            this.developerPayload = developerPayload;
+            this.startTime        = startTime;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Flow> flows = new ConcurrentHashMap<Integer, Flow>();
+    private final long                             timeout;
+
+    /**
+     * @param timeout The time after which a purchase flow without result is considered abandoned, in milliseconds.
+     */
+    PurchaseFlows(final long timeout) {
+        this.timeout = timeout * 1000000;
+    }
+
+    /**
+     * Registers a purchase flow about to be launched with the given request code, replacing any flow launched with the same request code that has not returned yet.
+     * @return The flow that was replaced, or <code>null</code>.
+     */
+    Flow start(final int requestCode, final String type, final String productId, final String developerPayload) {
+        final long now = System.nanoTime();
+
+        this.expire(now);
+
+        return this.flows.put(Integer.valueOf(requestCode), new Flow(type, productId, developerPayload, now));
+    }
+
+    /**
+     * Removes the purchase flow launched with the given request code, when its result arrives or it could not be launched.
+     * @return The flow launched with the request code, or <code>null</code> if there is none.
+     */
+    Flow finish(final int requestCode) {
+        return this.flows.remove(Integer.valueOf(requestCode));
+    }
+
+    private void expire(final long now) {
+        for (final Iterator<Flow> i = this.flows.values().iterator(); i.hasNext();) {
+            if (now - i.next().startTime >= this.timeout) {
+                i.remove();
+            }
+        }
+    }
+}
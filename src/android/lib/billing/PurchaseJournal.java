@@ -0,0 +1,491 @@
+package android.lib.billing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Records purchases from the moment a purchase flow is launched until the purchase is fulfilled, so that no purchase is lost if your app is killed in between.
+ * <p>Every change is appended to a file as a single line and flushed to the disk before the method returns. After your app restarts, {@link #load()} restores the purchases that are still in progress, and {@link BillingManager#reconcilePurchaseJournal()} resolves them against Google Play. Google Play is queried only if the journal is not empty, so a clean start costs no request.</p>
+ * <p>If {@link #load()} was not called, the file is loaded before the first change is recorded, so that new records never follow a partially written line and no previous record is lost.</p>
+ * <p>A purchase stays in the journal until it is consumed with {@link BillingManager#consume(String)}, or acknowledged with {@link #acknowledge(String)} once your app has granted it. Use {@link #getUnacknowledgedOrders()} to find the purchases your app still has to grant.</p>
+ */
+public final class PurchaseJournal {
+    /**
+     * A purchase in progress.
+     */
+    public static final class Entry {
+        private final int    requestCode;
+        private final String productId;
+        private final String developerPayload;
+        private final long   time;
+        private final Order  order;
+
+        Entry(final int requestCode, final String productId, final String developerPayload, final long time, final Order order) {
+            this.requestCode      = requestCode;
+            this.productId        = productId;
+            this.developerPayload = developerPayload;
+            this.time             = time;
+            this.order            = order;
+        }
+
+        /**
+         * Returns the request code the purchase flow was launched with, or <code>0</code> if the purchase was recorded without a purchase flow.
+         */
+        public int getRequestCode() {
+            return this.requestCode;
+        }
+
+        /**
+         * Returns the product ID being purchased.
+         */
+        public String getProductId() {
+            return this.productId;
+        }
+
+        /**
+         * Returns the developer payload the purchase flow was launched with.
+         */
+        public String getDeveloperPayload() {
+            return this.developerPayload;
+        }
+
+        /**
+         * Returns the time the purchase was recorded, in milliseconds since Jan 1, 1970.
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * Returns the {@link Order} of the purchase, or <code>null</code> if the result of the purchase flow is not known yet.
+         */
+        public Order getOrder() {
+            return this.order;
+        }
+    }
+
+    private static final String CHARSET = "UTF-8"; //$NON-NLS-1$
+
+    private static final String OP_INTENT = "intent"; //$NON-NLS-1$
+    private static final String OP_RESULT = "result"; //$NON-NLS-1$
+    private static final String OP_CANCEL = "cancel"; //$NON-NLS-1$
+    private static final String OP_ACK    = "ack";    //$NON-NLS-1$
+
+    private static final String KEY_OP           = "op";          //$NON-NLS-1$
+    private static final String KEY_REQUEST_CODE = "requestCode"; //$NON-NLS-1$
+    private static final String KEY_PRODUCT_ID   = "productId";   //$NON-NLS-1$
+    private static final String KEY_PAYLOAD      = "payload";     //$NON-NLS-1$
+    private static final String KEY_TIME         = "time";        //$NON-NLS-1$
+    private static final String KEY_DATA         = "data";        //$NON-NLS-1$
+    private static final String KEY_SIGNATURE    = "signature";   //$NON-NLS-1$
+    private static final String KEY_TYPE         = "type";        //$NON-NLS-1$
+    private static final String KEY_TOKEN        = "token";       //$NON-NLS-1$
+
+    /** The number of records in the file above which it is compacted, if most of them are obsolete */
+    private static final int COMPACT_THRESHOLD = 64;
+    /** The maximum number of acknowledgements kept for purchases whose result has not been recorded yet */
+    private static final int MAX_PENDING_ACKS  = 64;
+
+    private final File file;
+
+    /** The purchases in progress, by product ID. Google Play allows only one purchase in progress per product. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /** The purchase tokens acknowledged before the result of their purchase was recorded, in the order they were acknowledged */
+    private final Set<String> pendingAcks = new LinkedHashSet<String>();
+
+    private FileOutputStream stream;
+    private Writer           writer;
+    private int              records;
+    private boolean          loaded;
+    /** The value of {@link System#nanoTime()} when a purchase was last started or completed */
+    private long             changeTime = System.nanoTime();
+
+    /**
+     * Creates a new, empty {@link PurchaseJournal}.
+     * @param file The file the journal is appended to. Call {@link #load()} to restore the purchases previously recorded to it.
+     */
+    public PurchaseJournal(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Restores the purchases previously recorded to the file of this journal by replaying it. Nothing is restored if the file does not exist.
+     * <p>A partially written last line, left by your app being killed while appending it, is discarded.</p>
+     * <p>Note: Do not call {@link #load} method on the main thread. Calling this method reads from the disk.</p>
+     * @throws IOException if the file cannot be read or is corrupted.
+     */
+    public synchronized void load() throws IOException {
+        final String content = FileUtils.read(this.file);
+
+        this.entries.clear();
+        this.records = 0;
+
+        if (content == null) {
+            this.loaded = true;
+
+            return;
+        }
+
+        final String[] lines = content.split("\n"); //$NON-NLS-1$
+        boolean        torn  = false;
+
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].length() == 0) {
+                continue;
+            }
+
+            try {
+                this.replay(new JSONObject(lines[i]));
+            } catch (final JSONException e) {
+                if (i < lines.length - 1) {
+                    throw (IOException)new IOException(e.getMessage()).initCause(e);
+                }
+
+                torn = true;
+            }
+
+            this.records++;
+        }
+
+        this.loaded = true;
+
+        if (torn || this.records > PurchaseJournal.COMPACT_THRESHOLD && this.records > this.entries.size() * 2) {
+            this.compact();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the journal does not contain any purchase in progress; <code>false</code> otherwise.
+     * @return <code>true</code> if the journal is empty; <code>false</code> otherwise.
+     */
+    public synchronized boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    /**
+     * Returns the purchases in progress, including those whose purchase flow has not returned yet.
+     * @return The purchases in progress, in the order they were started.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(this.entries.values());
+    }
+
+    /**
+     * Returns the purchases that were completed but have not been consumed nor acknowledged yet. Your app should grant each of them, then consume or acknowledge it.
+     * @return The orders of the purchases your app has not acknowledged yet.
+     */
+    public synchronized List<Order> getUnacknowledgedOrders() {
+        final List<Order> orders = new ArrayList<Order>();
+
+        for (final Entry entry : this.entries.values()) {
+            if (entry.order != null) {
+                orders.add(entry.order);
+            }
+        }
+
+        return orders;
+    }
+
+    /**
+     * Removes a purchase from the journal once your app has granted it. Consumed purchases are removed automatically.
+     * <p>The result of a purchase flow is recorded in the background, so it may not be in the journal yet. The acknowledgement of a purchase that is not in the journal is then kept in memory, and applied as soon as its result is recorded.</p>
+     * <p>Note: Do not call {@link #acknowledge} method on the main thread. Calling this method writes to the disk.</p>
+     * @param purchaseToken The purchase token of the order to acknowledge.
+     * @throws IOException if the journal cannot be written.
+     */
+    public synchronized void acknowledge(final String purchaseToken) throws IOException {
+        this.loadIfNeeded();
+
+        if (this.findByToken(purchaseToken) == null) {
+            if (purchaseToken != null && this.pendingAcks.add(purchaseToken) && this.pendingAcks.size() > PurchaseJournal.MAX_PENDING_ACKS) {
+                // Most are for purchases that were never journaled, such as purchases made before the journal was set
+                this.pendingAcks.remove(this.pendingAcks.iterator().next());
+            }
+        } else {
+            this.appendAck(purchaseToken);
+        }
+    }
+
+    /**
+     * Closes the file of this journal. It is reopened on the next change.
+     * @throws IOException if the file cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            } finally {
+                this.writer = null;
+                this.stream = null;
+            }
+        }
+    }
+
+    /**
+     * Records that a purchase flow is about to be launched.
+     */
+    synchronized void recordIntent(final int requestCode, final String productId, final String developerPayload) throws IOException {
+        this.loadIfNeeded();
+
+        final JSONObject record = PurchaseJournal.newRecord(PurchaseJournal.OP_INTENT);
+        PurchaseJournal.put(record, PurchaseJournal.KEY_REQUEST_CODE, Integer.valueOf(requestCode));
+        PurchaseJournal.put(record, PurchaseJournal.KEY_PRODUCT_ID, productId);
+        PurchaseJournal.put(record, PurchaseJournal.KEY_PAYLOAD, developerPayload);
+        PurchaseJournal.put(record, PurchaseJournal.KEY_TIME, Long.valueOf(System.currentTimeMillis()));
+
+        this.append(record);
+
+        this.changeTime = System.nanoTime();
+    }
+
+    /**
+     * Records the {@link Order} returned by a purchase flow, or found by reconciliation.
+     */
+    synchronized void recordResult(final Order order) throws IOException {
+        this.loadIfNeeded();
+
+        final JSONObject record = PurchaseJournal.newRecord(PurchaseJournal.OP_RESULT);
+        PurchaseJournal.put(record, PurchaseJournal.KEY_DATA, order.getOriginalJson());
+        PurchaseJournal.put(record, PurchaseJournal.KEY_SIGNATURE, order.getSignature());
+        PurchaseJournal.put(record, PurchaseJournal.KEY_TYPE, order.getType());
+        PurchaseJournal.put(record, PurchaseJournal.KEY_TIME, Long.valueOf(System.currentTimeMillis()));
+
+        this.append(record);
+
+        if (this.pendingAcks.remove(order.getPurchaseToken())) {
+            this.appendAck(order.getPurchaseToken());
+        }
+
+        this.changeTime = System.nanoTime();
+    }
+
+    /**
+     * Records that the purchase flow launched with the given request code was cancelled or failed.
+     */
+    synchronized void recordCancel(final int requestCode) throws IOException {
+        this.loadIfNeeded();
+
+        for (final Entry entry : this.entries.values()) {
+            if (entry.requestCode == requestCode && entry.order == null) {
+                final JSONObject record = PurchaseJournal.newRecord(PurchaseJournal.OP_CANCEL);
+                PurchaseJournal.put(record, PurchaseJournal.KEY_PRODUCT_ID, entry.productId);
+
+                this.append(record);
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Resolves the purchases in progress against the complete list of purchases owned by the user, as returned by Google Play.
+     * <p>A purchase whose flow never returned becomes completed if the user owns the product, and is removed otherwise. A completed purchase the user no longer owns was consumed before its acknowledgement was recorded, and is removed.</p>
+     * <p>Nothing is resolved if a purchase was started or completed since the purchases were requested, as they may not include it yet.</p>
+     * @param startTime The value of {@link System#nanoTime()} when the purchases were requested.
+     * @return The orders of the purchases that were completed by reconciliation.
+     */
+    synchronized List<Order> reconcile(final Collection<Order> owned, final long startTime) throws IOException {
+        this.loadIfNeeded();
+
+        if (this.changeTime - startTime >= 0) {
+            return Collections.<Order>emptyList();
+        }
+
+        final Map<String, Order> ordersByProductId = new HashMap<String, Order>(owned.size() * 2);
+        final Map<String, Order> ordersByToken     = new HashMap<String, Order>(owned.size() * 2);
+        final List<Order>        recovered         = new ArrayList<Order>();
+
+        for (final Order order : owned) {
+            ordersByProductId.put(order.getProductId(), order);
+            ordersByToken.put(order.getPurchaseToken(), order);
+        }
+
+        for (final Entry entry : new ArrayList<Entry>(this.entries.values())) {
+            if (entry.order == null) {
+                final Order order = ordersByProductId.get(entry.productId);
+
+                if (order != null && (entry.developerPayload == null || entry.developerPayload.equals(order.getDeveloperPayload()))) {
+                    this.recordResult(order);
+
+                    recovered.add(order);
+                } else {
+                    final JSONObject record = PurchaseJournal.newRecord(PurchaseJournal.OP_CANCEL);
+                    PurchaseJournal.put(record, PurchaseJournal.KEY_PRODUCT_ID, entry.productId);
+
+                    this.append(record);
+                }
+            } else if (!ordersByToken.containsKey(entry.order.getPurchaseToken())) {
+                this.appendAck(entry.order.getPurchaseToken());
+            }
+        }
+
+        if (this.records > PurchaseJournal.COMPACT_THRESHOLD && this.records > this.entries.size() * 2) {
+            this.compact();
+        }
+
+        return recovered;
+    }
+
+    /**
+     * Restores the purchases previously recorded to the file, unless {@link #load()} was already called.
+     */
+    synchronized void loadIfNeeded() throws IOException {
+        if (!this.loaded) {
+            this.load();
+        }
+    }
+
+    /**
+     * Applies a record to the purchases in progress.
+     */
+    private void replay(final JSONObject record) throws JSONException {
+        final String op = record.getString(PurchaseJournal.KEY_OP);
+
+        if (PurchaseJournal.OP_INTENT.equals(op)) {
+            final String productId = record.getString(PurchaseJournal.KEY_PRODUCT_ID);
+
+            this.entries.put(productId, new Entry(record.optInt(PurchaseJournal.KEY_REQUEST_CODE), productId, record.has(PurchaseJournal.KEY_PAYLOAD) ? record.getString(PurchaseJournal.KEY_PAYLOAD) : null, record.optLong(PurchaseJournal.KEY_TIME), null));
+        } else if (PurchaseJournal.OP_RESULT.equals(op)) {
+            final String data = record.getString(PurchaseJournal.KEY_DATA);
+
+            // Purchases without every field are dropped when they are returned by Google Play, but may have been recorded by an earlier version
+            if (!Order.isValid(data)) {
+                return;
+            }
+
+            final Order order    = new Order(data, record.has(PurchaseJournal.KEY_SIGNATURE) ? record.getString(PurchaseJournal.KEY_SIGNATURE) : null, record.has(PurchaseJournal.KEY_TYPE) ? record.getString(PurchaseJournal.KEY_TYPE) : null);
+            final Entry existing = this.entries.get(order.getProductId());
+
+            if (existing == null) {
+                this.entries.put(order.getProductId(), new Entry(0, order.getProductId(), order.getDeveloperPayload(), record.optLong(PurchaseJournal.KEY_TIME), order));
+            } else {
+                this.entries.put(order.getProductId(), new Entry(existing.requestCode, existing.productId, existing.developerPayload, existing.time, order));
+            }
+        } else if (PurchaseJournal.OP_CANCEL.equals(op)) {
+            final Entry existing = this.entries.get(record.getString(PurchaseJournal.KEY_PRODUCT_ID));
+
+            if (existing != null && existing.order == null) {
+                this.entries.remove(existing.productId);
+            }
+        } else if (PurchaseJournal.OP_ACK.equals(op)) {
+            final Entry existing = this.findByToken(record.getString(PurchaseJournal.KEY_TOKEN));
+
+            if (existing != null) {
+                this.entries.remove(existing.productId);
+            }
+        }
+    }
+
+    private Entry findByToken(final String purchaseToken) {
+        if (purchaseToken == null) {
+            return null;
+        }
+
+        for (final Entry entry : this.entries.values()) {
+            if (entry.order != null && purchaseToken.equals(entry.order.getPurchaseToken())) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    private void appendAck(final String purchaseToken) throws IOException {
+        final JSONObject record = PurchaseJournal.newRecord(PurchaseJournal.OP_ACK);
+        PurchaseJournal.put(record, PurchaseJournal.KEY_TOKEN, purchaseToken);
+
+        this.append(record);
+    }
+
+    /**
+     * Writes a record to the end of the file and flushes it to the disk, then applies it.
+     */
+    private void append(final JSONObject record) throws IOException {
+        if (this.writer == null) {
+            this.stream = new FileOutputStream(this.file, true);
+            this.writer = new OutputStreamWriter(this.stream, PurchaseJournal.CHARSET);
+        }
+
+        this.writer.write(record.toString());
+        this.writer.write('\n');
+        this.writer.flush();
+        this.stream.getFD().sync();
+
+        this.records++;
+
+        try {
+            this.replay(record);
+        } catch (final JSONException e) {
+            throw (IOException)new IOException(e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * Replaces the file with the records needed to restore the purchases in progress.
+     */
+    private void compact() throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        int                 count   = 0;
+
+        for (final Entry entry : this.entries.values()) {
+            final JSONObject record;
+
+            if (entry.order == null) {
+                record = PurchaseJournal.newRecord(PurchaseJournal.OP_INTENT);
+                PurchaseJournal.put(record, PurchaseJournal.KEY_REQUEST_CODE, Integer.valueOf(entry.requestCode));
+                PurchaseJournal.put(record, PurchaseJournal.KEY_PRODUCT_ID, entry.productId);
+                PurchaseJournal.put(record, PurchaseJournal.KEY_PAYLOAD, entry.developerPayload);
+            } else {
+                record = PurchaseJournal.newRecord(PurchaseJournal.OP_RESULT);
+                PurchaseJournal.put(record, PurchaseJournal.KEY_DATA, entry.order.getOriginalJson());
+                PurchaseJournal.put(record, PurchaseJournal.KEY_SIGNATURE, entry.order.getSignature());
+                PurchaseJournal.put(record, PurchaseJournal.KEY_TYPE, entry.order.getType());
+            }
+
+            PurchaseJournal.put(record, PurchaseJournal.KEY_TIME, Long.valueOf(entry.time));
+
+            builder.append(record.toString()).append('\n');
+            count++;
+        }
+
+        this.close();
+
+        FileUtils.write(this.file, builder.toString());
+
+        this.records = count;
+    }
+
+    private static JSONObject newRecord(final String op) throws IOException {
+        final JSONObject record = new JSONObject();
+        PurchaseJournal.put(record, PurchaseJournal.KEY_OP, op);
+
+        return record;
+    }
+
+    /**
+     * Puts a value into a record. <code>null</code> values are left out.
+     */
+    private static void put(final JSONObject record, final String key, final Object value) throws IOException {
+        try {
+            record.put(key, value);
+        } catch (final JSONException e) {
+            throw (IOException)new IOException(e.getMessage()).initCause(e);
+        }
+    }
+}
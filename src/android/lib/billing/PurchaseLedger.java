@@ -0,0 +1,349 @@
+package android.lib.billing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Keeps a local copy of the purchases made by a user from your app, so that entitlements can be checked without going through Google Play.
+ * <p>The ledger is persisted to a file, so it is available right after the app starts and while your app is not connected to Google Play. Once set with {@link BillingManager#setPurchaseLedger(PurchaseLedger)}, it is synchronized with Google Play in the background when your app connects, and updated as purchases are made and consumed.</p>
+ * <p>Each purchase is saved with its signature. If the ledger is created with a {@link SignatureVerifier}, purchases that fail verification when they are restored, such as ones added by editing the file, are dropped.</p>
+ * <p>Lookups never block and are safe to call on the main thread.</p>
+ */
+public final class PurchaseLedger {
+    private static final String KEY_DATA      = "data";      //$NON-NLS-1$
+    private static final String KEY_SIGNATURE = "signature"; //$NON-NLS-1$
+    private static final String KEY_TYPE      = "type";      //$NON-NLS-1$
+
+    /**
+     * The orders in the ledger, by purchase token and by product ID. Updated in place while holding the lock of the ledger, and read without locking.
+     */
+    private static final class Index {
+        final ConcurrentMap<String, Order> ordersByToken;
+        final ConcurrentMap<String, Order> ordersByProductId;
+
+        Index(final Collection<Order> orders) {
+            this.ordersByToken     = new ConcurrentHashMap<String, Order>(Math.max(16, orders.size() * 2));
+            this.ordersByProductId = new ConcurrentHashMap<String, Order>(Math.max(16, orders.size() * 2));
+
+            for (final Order order : orders) {
+                this.put(order);
+            }
+        }
+
+        void put(final Order order) {
+            final Order previous = this.ordersByToken.put(order.getPurchaseToken(), order);
+
+            if (previous != null) {
+                this.ordersByProductId.remove(previous.getProductId(), previous);
+            }
+
+            this.ordersByProductId.put(order.getProductId(), order);
+        }
+
+        boolean remove(final String purchaseToken) {
+            final Order order = this.ordersByToken.remove(purchaseToken);
+
+            if (order == null) {
+                return false;
+            }
+
+            this.ordersByProductId.remove(order.getProductId(), order);
+
+            return true;
+        }
+    }
+
+    private final File              file;
+    private final SignatureVerifier verifier;
+    /** Held while saving, so that the orders are written to the file in the order they were taken */
+    private final Object            saveLock = new Object();
+
+    private volatile Index index = new Index(Collections.<Order>emptyList());
+    private volatile long  syncTime;
+    private boolean        dirty;
+    private boolean        loaded;
+    /** The value of {@link System#nanoTime()} when a purchase was last made or consumed locally */
+    private long           changeTime = System.nanoTime();
+
+    /** The purchase tokens removed locally that the file may still contain, so that {@link #load()} does not restore them */
+    private final Set<String> removedTokens = new HashSet<String>();
+
+    /**
+     * Creates a new, empty {@link PurchaseLedger}.
+     * @param file The file the ledger is persisted to. Call {@link #load()} to restore the purchases previously saved to it.
+     */
+    public PurchaseLedger(final File file) {
+        this(file, null);
+    }
+
+    /**
+     * Creates a new, empty {@link PurchaseLedger} that verifies the purchases it restores.
+     * @param file The file the ledger is persisted to. Call {@link #load()} to restore the purchases previously saved to it.
+     * @param verifier The verifier the signature of each restored purchase is checked with, or <code>null</code> to trust the file.
+     */
+    public PurchaseLedger(final File file, final SignatureVerifier verifier) {
+        this.file     = file;
+        this.verifier = verifier;
+    }
+
+    /**
+     * Restores the purchases previously saved to the file of this ledger. Nothing is restored if the file does not exist.
+     * <p>The restored purchases are merged into the ledger: purchases made or consumed since the ledger was created are kept as they are, and nothing is restored once the ledger has been synchronized with Google Play, as the file is older.</p>
+     * <p>If this ledger has a {@link SignatureVerifier}, purchases whose signature is missing or invalid are dropped.</p>
+     * <p>Note: Do not call {@link #load} method on the main thread. Calling this method reads from the disk.</p>
+     * @throws IOException if the file cannot be read or is corrupted.
+     */
+    public void load() throws IOException {
+        final String content = FileUtils.read(this.file);
+
+        if (content == null) {
+            return;
+        }
+
+        final List<Order> orders = new ArrayList<Order>();
+
+        try {
+            final JSONArray array = new JSONArray(content);
+
+            for (int i = 0; i < array.length(); i++) {
+                final JSONObject json  = array.optJSONObject(i);
+                // Ledgers saved by earlier versions contain the purchase data only
+                final Order      order = json == null ? new Order(array.getString(i), null, null) : new Order(json.getString(PurchaseLedger.KEY_DATA), json.has(PurchaseLedger.KEY_SIGNATURE) ? json.getString(PurchaseLedger.KEY_SIGNATURE) : null, json.has(PurchaseLedger.KEY_TYPE) ? json.getString(PurchaseLedger.KEY_TYPE) : null);
+
+                if (!Order.isValid(order.getOriginalJson())) {
+                    Log.w(this.getClass().getName(), "Invalid purchase data: " + order.getOriginalJson()); //$NON-NLS-1$
+                } else if (this.verifier == null || this.verifier.verify(order)) {
+                    orders.add(order);
+                } else {
+                    Log.w(this.getClass().getName(), "Signature verification failed: " + order.getOriginalJson()); //$NON-NLS-1$
+                }
+            }
+        } catch (final JSONException e) {
+            throw (IOException)new IOException(e.getMessage()).initCause(e);
+        }
+
+        synchronized (this) {
+            if (this.syncTime == 0) {
+                final Index index = this.index;
+
+                for (final Order order : orders) {
+                    if (!index.ordersByToken.containsKey(order.getPurchaseToken()) && !index.ordersByProductId.containsKey(order.getProductId()) && !this.removedTokens.contains(order.getPurchaseToken())) {
+                        index.put(order);
+                    }
+                }
+            }
+
+            this.loaded = true;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the user owns the given product; <code>false</code> otherwise.
+     * @param productId The product ID to check.
+     * @return <code>true</code> if the ledger contains a purchased {@link Order} for the product; <code>false</code> otherwise.
+     */
+    public boolean isPurchased(final String productId) {
+        final Order order = this.index.ordersByProductId.get(productId);
+
+        return order != null && order.getPurchaseState() == Order.STATE_PURCHASED;
+    }
+
+    /**
+     * Returns the {@link Order} of the given product, or <code>null</code> if the ledger does not contain it.
+     * @param productId The product ID of the order.
+     * @return The {@link Order} of the given product, or <code>null</code> if the ledger does not contain it.
+     */
+    public Order getOrder(final String productId) {
+        return this.index.ordersByProductId.get(productId);
+    }
+
+    /**
+     * Returns the {@link Order} identified by the given purchase token, or <code>null</code> if the ledger does not contain it.
+     * @param purchaseToken The purchase token of the order.
+     * @return The {@link Order} identified by the given purchase token, or <code>null</code> if the ledger does not contain it.
+     */
+    public Order getOrderByToken(final String purchaseToken) {
+        return this.index.ordersByToken.get(purchaseToken);
+    }
+
+    /**
+     * Returns all {@link Order}s in the ledger.
+     * @return All {@link Order}s in the ledger.
+     */
+    public List<Order> getOrders() {
+        return new ArrayList<Order>(this.index.ordersByToken.values());
+    }
+
+    /**
+     * Returns the time the ledger was last synchronized with Google Play, in milliseconds since Jan 1, 1970, or <code>0</code> if it has not been synchronized since it was created.
+     * @return The time the ledger was last synchronized with Google Play.
+     */
+    public long getSyncTime() {
+        return this.syncTime;
+    }
+
+    /**
+     * Saves the purchases in the ledger to its file, if they have changed since they were last saved.
+     * <p>The file is restored first if neither {@link #load()} nor a synchronization with Google Play has run yet, so that the purchases it contains are not overwritten.</p>
+     * <p>Note: Do not call {@link #save} method on the main thread. Calling this method writes to the disk.</p>
+     * @throws IOException if the file cannot be written.
+     */
+    public void save() throws IOException {
+        synchronized (this.saveLock) {
+            this.write();
+        }
+    }
+
+    private void write() throws IOException {
+        final boolean loaded;
+
+        synchronized (this) {
+            loaded = this.loaded;
+        }
+
+        if (!loaded) {
+            try {
+                this.load();
+            } catch (final IOException e) {
+                // A corrupted file cannot be restored, and is replaced
+                Log.w(this.getClass().getName(), e.getMessage(), e);
+
+                synchronized (this) {
+                    this.loaded = true;
+                }
+            }
+        }
+
+        final Index       index;
+        final Set<String> removed;
+
+        synchronized (this) {
+            if (!this.dirty) {
+                return;
+            }
+
+            index      = this.index;
+            removed    = new HashSet<String>(this.removedTokens);
+            this.dirty = false;
+        }
+
+        final JSONArray array = new JSONArray();
+
+        try {
+            for (final Order order : index.ordersByToken.values()) {
+                final JSONObject json = new JSONObject();
+                json.put(PurchaseLedger.KEY_DATA, order.getOriginalJson());
+                json.put(PurchaseLedger.KEY_SIGNATURE, order.getSignature());
+                json.put(PurchaseLedger.KEY_TYPE, order.getType());
+
+                array.put(json);
+            }
+        } catch (final JSONException e) {
+            synchronized (this) {
+                this.dirty = true;
+            }
+
+            throw (IOException)new IOException(e.getMessage()).initCause(e);
+        }
+
+        try {
+            FileUtils.write(this.file, array.toString());
+        } catch (final IOException e) {
+            synchronized (this) {
+                this.dirty = true;
+            }
+
+            throw e;
+        }
+
+        synchronized (this) {
+            this.removedTokens.removeAll(removed);
+        }
+    }
+
+    /**
+     * Adds or replaces an {@link Order} in the ledger.
+     */
+    synchronized void put(final Order order) {
+        this.index.put(order);
+        this.removedTokens.remove(order.getPurchaseToken());
+
+        this.dirty      = true;
+        this.changeTime = System.nanoTime();
+    }
+
+    /**
+     * Removes the {@link Order} identified by the given purchase token from the ledger.
+     */
+    synchronized void remove(final String purchaseToken) {
+        if (!this.loaded) {
+            this.removedTokens.add(purchaseToken);
+        }
+
+        if (this.index.remove(purchaseToken)) {
+            this.removedTokens.add(purchaseToken);
+
+            this.dirty      = true;
+            this.changeTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Replaces the content of the ledger with the complete list of purchases returned by Google Play, unless a purchase was made or consumed locally since they were requested, in which case they may be outdated and the ledger is left unchanged.
+     * @param startTime The value of {@link System#nanoTime()} when the purchases were requested.
+     * @return <code>true</code> if any purchase was added, removed or changed; <code>false</code> otherwise.
+     */
+    synchronized boolean sync(final Collection<Order> orders, final long startTime) {
+        if (this.changeTime - startTime >= 0) {
+            return false;
+        }
+
+        final Map<String, Order> current = this.index.ordersByToken;
+        boolean                  changed = current.size() != orders.size();
+
+        if (!changed) {
+            for (final Order order : orders) {
+                final Order existing = current.get(order.getPurchaseToken());
+
+                if (existing == null || !PurchaseLedger.isSame(existing, order)) {
+                    changed = true;
+
+                    break;
+                }
+            }
+        }
+
+        if (changed) {
+            this.index = new Index(orders);
+            this.dirty = true;
+        }
+
+        // The file is older than the purchases returned by Google Play
+        this.loaded   = true;
+        this.syncTime = System.currentTimeMillis();
+
+        return changed;
+    }
+
+    /**
+     * Returns <code>true</code> if two orders have the same purchase data, signature and type; <code>false</code> otherwise.
+     */
+    private static boolean isSame(final Order order, final Order other) {
+        return order.getOriginalJson().equals(other.getOriginalJson()) && (order.getSignature() == null ? other.getSignature() == null : order.getSignature().equals(other.getSignature())) && (order.getType() == null ? other.getType() == null : order.getType().equals(other.getType()));
+    }
+}
@@ -0,0 +1,71 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The purchased products and subscriptions returned by Google Play for a single query, as returned by {@link BillingManager#queryPurchaseSnapshot()}.
+ * <p>Products and subscriptions are requested concurrently, each following its own continuation tokens. The snapshot is complete only if every page of both was returned successfully; otherwise it contains no {@link Order}s at all, so that your app never acts on a partial list. The exception is {@link BillingManager#BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE}, returned with the purchases already known to the {@link PurchaseLedger} or {@link BillingManager#getProductIndex()}, so that entitlements are still granted while Google Play is unavailable.</p>
+ */
+public final class PurchaseSnapshot {
+    private final int         responseCode;
+    private final List<Order> products;
+    private final List<Order> subscriptions;
+    private final long        elapsedTime;
+
+    /** The value of {@link System#nanoTime()} when the first request was sent, to tell whether local changes were made after it */
+    final long startTime;
+
+    PurchaseSnapshot(final int responseCode, final List<Order> products, final List<Order> subscriptions, final long startTime, final long elapsedTime) {
+        this.responseCode  = responseCode;
+        this.products      = Collections.unmodifiableList(products);
+        this.subscriptions = Collections.unmodifiableList(subscriptions);
+        this.startTime     = startTime;
+        this.elapsedTime   = elapsedTime;
+    }
+
+    /**
+     * Returns the result of the query.
+     * @return {@link BillingManager#BILLING_RESPONSE_RESULT_OK} if every page of both products and subscriptions was returned successfully; the first error encountered otherwise.
+     */
+    public int getResponseCode() {
+        return this.responseCode;
+    }
+
+    /**
+     * Returns the purchased products. The type of each {@link Order} is {@link BillingManager#PURCHASE_TYPE_INAPP}.
+     * @return An unmodifiable list of the purchased products, or an empty list if the query failed with an error other than {@link BillingManager#BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE}.
+     */
+    public List<Order> getProducts() {
+        return this.products;
+    }
+
+    /**
+     * Returns the purchased subscriptions. The type of each {@link Order} is {@link BillingManager#PURCHASE_TYPE_SUBSCRIPTION}.
+     * @return An unmodifiable list of the purchased subscriptions, or an empty list if the query failed with an error other than {@link BillingManager#BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE}.
+     */
+    public List<Order> getSubscriptions() {
+        return this.subscriptions;
+    }
+
+    /**
+     * Returns the purchased products followed by the purchased subscriptions.
+     * @return A new list of every purchase in this snapshot. Use {@link Order#getType()} to tell them apart.
+     */
+    public List<Order> getOrders() {
+        final List<Order> orders = new ArrayList<Order>(this.products.size() + this.subscriptions.size());
+        orders.addAll(this.products);
+        orders.addAll(this.subscriptions);
+
+        return orders;
+    }
+
+    /**
+     * Returns the wall-clock time the query took, from the first request to Google Play until both products and subscriptions were returned.
+     * @return The time the query took, in nanoseconds.
+     */
+    public long getElapsedTime() {
+        return this.elapsedTime;
+    }
+}
@@ -0,0 +1,86 @@
+package android.lib.billing;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Verifies that purchase data was signed by Google Play with the private key of your app.
+ * <p>The public key is decoded once, and each thread reuses its own {@link Signature} instance, so a verifier can be shared and used concurrently.</p>
+ */
+public final class SignatureVerifier {
+    private static final String KEY_ALGORITHM       = "RSA";         //$NON-NLS-1$
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA"; //$NON-NLS-1$
+    private static final String CHARSET             = "UTF-8";       //$NON-NLS-1$
+
+    private final PublicKey publicKey;
+
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(SignatureVerifier.SIGNATURE_ALGORITHM);
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * Creates a new {@link SignatureVerifier}.
+     * @param base64PublicKey The Base64-encoded RSA public key of your app, as shown in the Google Play Developer Console.
+     * @throws IllegalArgumentException if the public key is invalid.
+     */
+    public SignatureVerifier(final String base64PublicKey) throws IllegalArgumentException {
+        try {
+            this.publicKey = KeyFactory.getInstance(SignatureVerifier.KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(Base64.decode(base64PublicKey, Base64.DEFAULT)));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the purchase data was signed with the private key matching the public key of this verifier; <code>false</code> otherwise.
+     * @param signedData The purchase data, as returned by {@link Order#getOriginalJson()}.
+     * @param signature The Base64-encoded signature, as returned by {@link Order#getSignature()}.
+     * @return <code>true</code> if the signature is valid; <code>false</code> otherwise.
+     */
+    public boolean verify(final String signedData, final String signature) {
+        if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+            return false;
+        }
+
+        try {
+            final Signature verifier = this.signatures.get();
+            verifier.initVerify(this.publicKey);
+            verifier.update(signedData.getBytes(SignatureVerifier.CHARSET));
+
+            return verifier.verify(Base64.decode(signature, Base64.DEFAULT));
+        } catch (final GeneralSecurityException e) {
+            Log.w(this.getClass().getName(), e.getMessage(), e);
+        } catch (final UnsupportedEncodingException e) {
+            Log.w(this.getClass().getName(), e.getMessage(), e);
+        } catch (final IllegalArgumentException e) {
+            // The signature is not valid Base64
+            Log.w(this.getClass().getName(), e.getMessage(), e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if the signed data of the given order is valid; <code>false</code> otherwise.
+     * @param order The order to verify.
+     * @return <code>true</code> if the signature of the order is valid; <code>false</code> otherwise.
+     */
+    public boolean verify(final Order order) {
+        return this.verify(order.getOriginalJson(), order.getSignature());
+    }
+}
@@ -0,0 +1,292 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+
+/**
+ * Runs requests, making concurrent requests with the same key share a single execution.
+ * <p>Each caller gets its own {@link Future}. Cancelling it detaches only that caller; the shared execution is cancelled once every caller has cancelled.</p>
+ * <p>Asynchronous requests submitted with {@link #submit(Executor, String, Callable, Handler, BillingManager.OnResultListener)} and blocking requests made with {@link #join(String, Callable)} share the same executions.</p>
+ */
+final class SingleFlight {
+    private final Map<String, Flight<?>> flights = new HashMap<String, Flight<?>>();
+
+    /**
+     * Submits a request to the executor, or joins the in-flight request with the same key.
+     * @param executor The executor to run the request on.
+     * @param key The key that identifies identical requests, or <code>null</code> if the request must not be shared.
+     * @param callable The request to run.
+     * @param handler The handler the listener is called on, or <code>null</code> to call it on the worker thread.
+     * @param listener The listener to notify when the request completes, or <code>null</code>.
+     * @return A {@link Future} representing the result of the request for this caller.
+     */
+    <T> Future<T> submit(final Executor executor, final String key, final Callable<T> callable, final Handler handler, final BillingManager.OnResultListener<T> listener) {
+        final Flight<T> flight;
+        final Call<T>   call;
+
+        synchronized (this.flights) {
+            final Call<T> existing = this.attach(key, handler, listener);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            flight = new Flight<T>(key, callable);
+            call   = this.start(flight, handler, listener);
+        }
+
+        try {
+            executor.execute(flight);
+        } catch (final RejectedExecutionException e) {
+            flight.cancel(false);
+
+            throw e;
+        }
+
+        return call;
+    }
+
+    /**
+     * Runs a request on the calling thread and returns its result, or waits for the result of the in-flight request with the same key. An in-flight request that has not been started by its executor yet is run on the calling thread.
+     * @param key The key that identifies identical requests.
+     * @param callable The request to run.
+     * @return The result of the request.
+     * @throws ExecutionException if the request threw an exception.
+     * @throws InterruptedException if the calling thread was interrupted while waiting for the in-flight request.
+     */
+    <T> T join(final String key, final Callable<T> callable) throws ExecutionException, InterruptedException {
+        Call<T> call;
+
+        synchronized (this.flights) {
+            call = this.attach(key, null, null);
+
+            if (call == null) {
+                call = this.start(new Flight<T>(key, callable), null, null);
+            }
+        }
+
+        // Also runs an in-flight request that is still queued, since the calling thread may be the one it is waiting for. Does nothing if it has already been started
+        call.flight.run();
+
+        try {
+            return call.get();
+        } catch (final InterruptedException e) {
+            call.cancel(true);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Attaches a new caller to the in-flight request with the given key. Must be called while holding the lock on {@link #flights}.
+     * @return The {@link Call} of the new caller, or <code>null</code> if there is no in-flight request to join.
+     */
+    private <T> Call<T> attach(final String key, final Handler handler, final BillingManager.OnResultListener<T> listener) {
+        if (key == null) {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        final Flight<T> flight = (Flight<T>)this.flights.get(key);
+
+        if (flight == null) {
+            return null;
+        }
+
+        final Call<T> call = new Call<T>(flight, handler, listener);
+
+        return flight.add(call) ? call : null;
+    }
+
+    /**
+     * Registers a new request and its first caller. Must be called while holding the lock on {@link #flights}.
+     */
+    private <T> Call<T> start(final Flight<T> flight, final Handler handler, final BillingManager.OnResultListener<T> listener) {
+        final Call<T> call = new Call<T>(flight, handler, listener);
+        flight.add(call);
+
+        if (flight.key != null) {
+            this.flights.put(flight.key, flight);
+        }
+
+        return call;
+    }
+
+    private final class Flight<T> extends FutureTask<T> {
+        private final String        key;
+        private final List<Call<T>> calls = new ArrayList<Call<T>>();
+
+        private boolean completed;
+
+        Flight(final String key, final Callable<T> callable) {
+            super(callable);
+
+            this.key = key;
+        }
+
+        /**
+         * Attaches a caller to this execution.
+         * @return <code>false</code> if this execution has already completed and cannot be joined.
+         */
+        synchronized boolean add(final Call<T> call) {
+            if (this.completed) {
+                return false;
+            }
+
+            this.calls.add(call);
+
+            return true;
+        }
+
+        /**
+         * Detaches a caller from this execution, and cancels it if no other caller is attached.
+         */
+        void remove(final Call<T> call) {
+            final boolean abandoned;
+
+            synchronized (this) {
+                this.calls.remove(call);
+
+                abandoned = this.calls.isEmpty() && !this.completed;
+
+                if (abandoned) {
+                    // Nobody can join an execution that is about to be cancelled
+                    this.completed = true;
+                }
+            }
+
+            if (abandoned) {
+                this.cancel(true);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (this.key != null) {
+                synchronized (SingleFlight.this.flights) {
+                    if (SingleFlight.this.flights.get(this.key) == this) {
+                        SingleFlight.this.flights.remove(this.key);
+                    }
+                }
+            }
+
+            final List<Call<T>> calls;
+
+            synchronized (this) {
+                this.completed = true;
+
+                calls = new ArrayList<Call<T>>(this.calls);
+            }
+
+            for (final Call<T> call : calls) {
+                call.deliver();
+            }
+        }
+    }
+
+    private static final class Call<T> implements Future<T> {
+        private final Flight<T>                          flight;
+        private final Handler                            handler;
+        private final BillingManager.OnResultListener<T> listener;
+
+        private volatile boolean cancelled;
+
+        Call(final Flight<T> flight, final Handler handler, final BillingManager.OnResultListener<T> listener) {
+            this.flight   = flight;
+            this.handler  = handler;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            if (this.cancelled || this.flight.isDone()) {
+                return false;
+            }
+
+            this.cancelled = true;
+            this.flight.remove(this);
+
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.cancelled || this.flight.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.cancelled || this.flight.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            if (this.cancelled) {
+                throw new CancellationException();
+            }
+
+            return this.flight.get();
+        }
+
+        @Override
+        public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (this.cancelled) {
+                throw new CancellationException();
+            }
+
+            return this.flight.get(timeout, unit);
+        }
+
+        void deliver() {
+            if (this.listener == null || this.isCancelled()) {
+                return;
+            }
+
+            final Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    if (Call.this.cancelled) {
+                        return;
+                    }
+
+                    final T result;
+
+                    try {
+                        result = Call.this.flight.get();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+
+                        return;
+                    } catch (final ExecutionException e) {
+                        final Throwable cause = e.getCause();
+
+                        Call.this.listener.onError(cause instanceof Exception ? (Exception)cause : e);
+
+                        return;
+                    }
+
+                    Call.this.listener.onResult(result);
+                }
+            };
+
+            if (this.handler == null) {
+                runnable.run();
+            } else {
+                this.handler.post(runnable);
+            }
+        }
+    }
+}
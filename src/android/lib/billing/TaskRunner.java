@@ -0,0 +1,97 @@
+package android.lib.billing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.RemoteException;
+
+/**
+ * Runs a batch of tasks on an {@link Executor} and waits for all of them to complete.
+ * <p>The calling thread runs any task that has not been picked up by the executor yet, so a batch can be submitted from a worker of the same bounded pool without deadlocking.</p>
+ */
+final class TaskRunner {
+    private TaskRunner() {
+    }
+
+    /**
+     * Runs the given tasks concurrently and returns their results in the same order.
+     * @param executor The executor to run the tasks on.
+     * @param callables The tasks to run.
+     * @return The results of the tasks, in the same order as <code>callables</code>.
+     * @throws RemoteException if any of the tasks throws {@link RemoteException}, or if the calling thread is interrupted.
+     */
+    static <T> List<T> invokeAll(final Executor executor, final List<? extends Callable<T>> callables) throws RemoteException {
+        final List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(callables.size());
+
+        for (final Callable<T> callable : callables) {
+            tasks.add(new FutureTask<T>(callable));
+        }
+
+        // The first task is always run by the calling thread
+        for (int i = 1; i < tasks.size(); i++) {
+            try {
+                executor.execute(tasks.get(i));
+            } catch (final RejectedExecutionException e) {
+                // The calling thread runs it below
+            }
+        }
+
+        final List<T> results = new ArrayList<T>(tasks.size());
+
+        try {
+            for (final FutureTask<T> task : tasks) {
+                task.run();
+
+                results.add(task.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw TaskRunner.toRemoteException(e);
+        } catch (final ExecutionException e) {
+            throw TaskRunner.unwrap(e.getCause());
+        } finally {
+            if (results.size() < tasks.size()) {
+                for (final FutureTask<T> task : tasks) {
+                    task.cancel(true);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Rethrows the given cause of a failed task if it is unchecked, or returns it as a {@link RemoteException} to be thrown by the caller.
+     */
+    static RemoteException unwrap(final Throwable cause) {
+        if (cause instanceof RemoteException) {
+            return (RemoteException)cause;
+        }
+
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+        }
+
+        if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+
+        return TaskRunner.toRemoteException(cause);
+    }
+
+    /**
+     * Wraps the given throwable in a {@link RemoteException}, which does not provide a constructor that takes a cause.
+     */
+    static RemoteException toRemoteException(final Throwable cause) {
+        final RemoteException exception = new RemoteException();
+        exception.initCause(cause);
+
+        return exception;
+    }
+}
@@ -0,0 +1,165 @@
+package android.lib.billing;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Pair;
+
+/**
+ * The results of the requests {@link BillingManager} sends to Google Play as soon as it connects, if warm-up is enabled with {@link BillingManager#setWarmUpEnabled(boolean)}.
+ * <p>Whether in-app billing is supported for products and subscriptions is checked first. Then product details, subscription details and purchases of both types are requested concurrently, skipping the types that are not supported. The results are also stored in the {@link PurchasableCache} and the {@link ProductIndex} as usual, and identical queries made while the warm-up is running share its requests.</p>
+ * <p>Each result is available as a {@link Future} as soon as {@link BillingManager#onCreate()} returns, so your app can wait for the first prices without triggering requests of its own.</p>
+ */
+public final class WarmUp {
+    private final FutureTask<Integer>                          billingSupported;
+    private final FutureTask<Integer>                          subscriptionSupported;
+    private final FutureTask<Pair<Integer, List<Purchasable>>> products;
+    private final FutureTask<Pair<Integer, List<Purchasable>>> subscriptions;
+    private final FutureTask<Pair<Integer, List<Order>>>       purchasedProducts;
+    private final FutureTask<Pair<Integer, List<Order>>>       purchasedSubscriptions;
+    private final AtomicBoolean                                started = new AtomicBoolean();
+
+    WarmUp(final Callable<Integer> billingSupported, final Callable<Integer> subscriptionSupported, final Callable<Pair<Integer, List<Purchasable>>> products, final Callable<Pair<Integer, List<Purchasable>>> subscriptions, final Callable<Pair<Integer, List<Order>>> purchasedProducts, final Callable<Pair<Integer, List<Order>>> purchasedSubscriptions) {
+        this.billingSupported       = new FutureTask<Integer>(billingSupported);
+        this.subscriptionSupported  = new FutureTask<Integer>(subscriptionSupported);
+        this.products               = new FutureTask<Pair<Integer, List<Purchasable>>>(WarmUp.whenSupported(this.billingSupported, products));
+        this.subscriptions          = new FutureTask<Pair<Integer, List<Purchasable>>>(WarmUp.whenSupported(this.subscriptionSupported, subscriptions));
+        this.purchasedProducts      = new FutureTask<Pair<Integer, List<Order>>>(WarmUp.whenSupported(this.billingSupported, purchasedProducts));
+        this.purchasedSubscriptions = new FutureTask<Pair<Integer, List<Order>>>(WarmUp.whenSupported(this.subscriptionSupported, purchasedSubscriptions));
+    }
+
+    /**
+     * Returns the result of checking whether in-app billing is supported for products.
+     * @return A {@link Future} representing the response code of <code>isBillingSupported</code>. The value of {@link BillingManager#BILLING_RESPONSE_RESULT_OK} represents products are supported.
+     */
+    public Future<Integer> getBillingSupported() {
+        return this.billingSupported;
+    }
+
+    /**
+     * Returns the result of checking whether in-app billing is supported for subscriptions.
+     * @return A {@link Future} representing the response code of <code>isBillingSupported</code>. The value of {@link BillingManager#BILLING_RESPONSE_RESULT_OK} represents subscriptions are supported.
+     */
+    public Future<Integer> getSubscriptionSupported() {
+        return this.subscriptionSupported;
+    }
+
+    /**
+     * Returns the details of the products set with {@link BillingManager#setWarmUpProducts(String...)}.
+     * @return A {@link Future} representing the result of {@link BillingManager#queryPurchasableProducts(String...)}, or the response code of <code>isBillingSupported</code> and an empty list if products are not supported.
+     */
+    public Future<Pair<Integer, List<Purchasable>>> getProducts() {
+        return this.products;
+    }
+
+    /**
+     * Returns the details of the subscriptions set with {@link BillingManager#setWarmUpSubscriptions(String...)}.
+     * @return A {@link Future} representing the result of {@link BillingManager#queryPurchasableSubscriptions(String...)}, or the response code of <code>isBillingSupported</code> and an empty list if subscriptions are not supported.
+     */
+    public Future<Pair<Integer, List<Purchasable>>> getSubscriptions() {
+        return this.subscriptions;
+    }
+
+    /**
+     * Returns the purchased products.
+     * @return A {@link Future} representing the result of {@link BillingManager#queryPurchasedProducts()}, or the response code of <code>isBillingSupported</code> and an empty list if products are not supported.
+     */
+    public Future<Pair<Integer, List<Order>>> getPurchasedProducts() {
+        return this.purchasedProducts;
+    }
+
+    /**
+     * Returns the purchased subscriptions.
+     * @return A {@link Future} representing the result of {@link BillingManager#queryPurchasedSubscriptions()}, or the response code of <code>isBillingSupported</code> and an empty list if subscriptions are not supported.
+     */
+    public Future<Pair<Integer, List<Order>>> getPurchasedSubscriptions() {
+        return this.purchasedSubscriptions;
+    }
+
+    /**
+     * Starts the warm-up on the given executor. Does nothing if it has already been started.
+     */
+    void start(final Executor executor) {
+        if (!this.started.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Runnable pipeline = new Runnable() {
+            @Override
+            public void run() {
+                WarmUp.runAll(executor, WarmUp.this.billingSupported, WarmUp.this.subscriptionSupported);
+
+                // The checks are completed or running by now, so the requests waiting for them cannot starve them of threads
+                WarmUp.runAll(executor, WarmUp.this.products, WarmUp.this.subscriptions, WarmUp.this.purchasedProducts, WarmUp.this.purchasedSubscriptions);
+            }
+        };
+
+        try {
+            executor.execute(pipeline);
+        } catch (final RejectedExecutionException e) {
+            this.cancel();
+        }
+    }
+
+    /**
+     * Cancels every request of the warm-up that has not completed yet.
+     * <p>Requests that have not started are never sent. Running requests are not interrupted, as they may be shared with identical queries made by your app, and their results are discarded.</p>
+     */
+    void cancel() {
+        this.billingSupported.cancel(false);
+        this.subscriptionSupported.cancel(false);
+        this.products.cancel(false);
+        this.subscriptions.cancel(false);
+        this.purchasedProducts.cancel(false);
+        this.purchasedSubscriptions.cancel(false);
+    }
+
+    /**
+     * Runs the given tasks concurrently, and returns once each of them has completed or been started by the executor. The calling thread runs the first task, and any task the executor rejects.
+     */
+    private static void runAll(final Executor executor, final FutureTask<?>... tasks) {
+        for (int i = 1; i < tasks.length; i++) {
+            try {
+                executor.execute(tasks[i]);
+            } catch (final RejectedExecutionException e) {
+                // The calling thread runs it below
+            }
+        }
+
+        for (final FutureTask<?> task : tasks) {
+            // Does nothing if the task has already been started by the executor
+            task.run();
+        }
+    }
+
+    /**
+     * Wraps a request so that it is sent only if the check for its type was successful.
+     */
+    private static <T> Callable<Pair<Integer, List<T>>> whenSupported(final Future<Integer> supported, final Callable<Pair<Integer, List<T>>> callable) {
+        return new Callable<Pair<Integer, List<T>>>() {
+            @Override
+            public Pair<Integer, List<T>> call() throws Exception {
+                final Integer responseCode;
+
+                try {
+                    responseCode = supported.get();
+                } catch (final ExecutionException e) {
+                    throw TaskRunner.unwrap(e.getCause());
+                }
+
+                if (responseCode.intValue() != BillingManager.BILLING_RESPONSE_RESULT_OK) {
+                    return Pair.create(responseCode, Collections.<T>emptyList());
+                }
+
+                return callable.call();
+            }
+        };
+    }
+}
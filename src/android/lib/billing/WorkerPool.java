@@ -0,0 +1,43 @@
+package android.lib.billing;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the bounded pool of worker threads that the library uses for billing requests by default.
+ */
+final class WorkerPool {
+    /** The maximum number of billing requests the default pool runs at the same time. */
+    static final int MAX_THREADS = 4;
+
+    private static final String THREAD_NAME = "InAppBilling-"; //$NON-NLS-1$
+
+    private static ExecutorService executor;
+
+    private WorkerPool() {
+    }
+
+    /**
+     * Returns the shared worker pool, creating it on first use.
+     * @return The shared worker pool.
+     */
+    static synchronized ExecutorService get() {
+        if (WorkerPool.executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+
+            WorkerPool.executor = Executors.newFixedThreadPool(WorkerPool.MAX_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, WorkerPool.THREAD_NAME + count.incrementAndGet());
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        }
+
+        return WorkerPool.executor;
+    }
+}